@@ -5,16 +5,77 @@
 
 package com.andrewsoutar;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormatSymbols;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.InputMismatchException;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.DoublePredicate;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Utilities {
     /**
@@ -27,6 +88,17 @@ public class Utilities {
         PROJECT
     }
 
+    /**
+     * A width which tells a layout method to use the width of the terminal
+     */
+    public static final int AUTO = -1;
+
+    /**
+     * The width used by layout methods when the width of the terminal can't
+     * be found
+     */
+    public static final int DEFAULT_WIDTH = 60;
+
     /**
      * Create a string comprised of a single repeating character
      *
@@ -35,7 +107,200 @@ public class Utilities {
      * @return a string comprised of chr repeated n times
      */
     public static String repeat (char chr, int n) {
-        return (new String (new char [n]).replace ('\0', chr));
+        char [] chars = new char [n];
+        Arrays.fill (chars, chr);
+        return (new String (chars));
+    }
+
+    /**
+     * Write a single repeating character into a char array
+     *
+     * @param chr the character to repeat
+     * @param n the number of times to repeat it
+     * @param dest the array into which to write
+     * @param offset the index in dest at which to start writing
+     * @return the index in dest just after the last character written
+     */
+    public static int repeat (char chr, int n, char [] dest, int offset) {
+        checkRepeatCount (n);
+        Arrays.fill (dest, offset, offset + n, chr);
+        return (offset + n);
+    }
+
+    /**
+     * Append a single repeating character to a StringBuilder
+     *
+     * @param chr the character to repeat
+     * @param n the number of times to repeat it
+     * @param sb the StringBuilder to which to append
+     * @return sb
+     */
+    public static StringBuilder repeat (char chr, int n, StringBuilder sb) {
+        checkRepeatCount (n);
+        sb.ensureCapacity (sb.length () + n);
+        for (int i = 0; i < n; i++) {
+            sb.append (chr);
+        }
+        return (sb);
+    }
+
+    /**
+     * Append a single repeating character to an Appendable
+     *
+     * @param chr the character to repeat
+     * @param n the number of times to repeat it
+     * @param out the Appendable to which to append
+     * @return out
+     * @throws IOException if out throws one
+     */
+    public static Appendable repeat (char chr, int n, Appendable out)
+        throws IOException {
+        if (out instanceof StringBuilder) {
+            return (repeat (chr, n, (StringBuilder) out));
+        }
+        checkRepeatCount (n);
+        if (out instanceof Writer) {
+            // Write in blocks so that we don't go through the Writer's lock
+            // once per character
+            char [] block = new char [Math.min (n, 512)];
+            Arrays.fill (block, chr);
+            for (int left = n; left > 0; left -= block.length) {
+                ((Writer) out).write (block, 0, Math.min (left, block.length));
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                out.append (chr);
+            }
+        }
+        return (out);
+    }
+
+    /**
+     * Create a string comprised of a repeating pattern
+     *
+     * @param pattern the sequence of characters to repeat
+     * @param n the number of times to repeat it
+     * @return a string comprised of pattern repeated n times
+     */
+    public static String repeat (CharSequence pattern, int n) {
+        checkRepeatCount (n);
+        char [] chars = new char [Math.multiplyExact (pattern.length (), n)];
+        repeat (pattern, n, chars, 0);
+        return (new String (chars));
+    }
+
+    /**
+     * Write a repeating pattern into a char array
+     *
+     * The pattern is only read once; after that, the part of dest which has
+     * been filled in is copied onto the end of itself, doubling each time.
+     *
+     * @param pattern the sequence of characters to repeat
+     * @param n the number of times to repeat it
+     * @param dest the array into which to write
+     * @param offset the index in dest at which to start writing
+     * @return the index in dest just after the last character written
+     */
+    public static int repeat (CharSequence pattern, int n, char [] dest,
+                              int offset) {
+        checkRepeatCount (n);
+        int length = pattern.length ();
+        int total = Math.multiplyExact (length, n);
+        if (total == 0) {
+            return (offset);
+        }
+        if (offset < 0 || total > dest.length - offset) {
+            throw new ArrayIndexOutOfBoundsException (offset + total);
+        }
+
+        if (pattern instanceof String) {
+            ((String) pattern).getChars (0, length, dest, offset);
+        } else {
+            for (int i = 0; i < length; i++) {
+                dest [offset + i] = pattern.charAt (i);
+            }
+        }
+        for (int filled = length; filled < total; filled *= 2) {
+            System.arraycopy (dest, offset, dest, offset + filled,
+                              Math.min (filled, total - filled));
+        }
+        return (offset + total);
+    }
+
+    /**
+     * Append a repeating pattern to a StringBuilder
+     *
+     * @param pattern the sequence of characters to repeat
+     * @param n the number of times to repeat it
+     * @param sb the StringBuilder to which to append
+     * @return sb
+     */
+    public static StringBuilder repeat (CharSequence pattern, int n,
+                                        StringBuilder sb) {
+        checkRepeatCount (n);
+        sb.ensureCapacity (sb.length () +
+                           Math.multiplyExact (pattern.length (), n));
+        for (int i = 0; i < n; i++) {
+            sb.append (pattern);
+        }
+        return (sb);
+    }
+
+    private static void checkRepeatCount (int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException ("Negative repeat count: " + n);
+        }
+    }
+
+    /**
+     * Wrap a single string to a specified length at space boundaries
+     *
+     * This makes one pass over the string, so it runs in time linear in the
+     * length of the string. Words which are longer than width are broken at
+     * width characters.
+     *
+     * @param line the string to wrap
+     * @param width the maximum width of any piece of line
+     * @param ret the collection to which the pieces of line are added
+     */
+    public static void wrapLine (String line, int width,
+                                 Collection <? super String> ret) {
+        int length = line.length ();
+        if (length <= width) {
+            ret.add (line);
+            return;
+        }
+        if (width < 1) {
+            throw new IllegalArgumentException ("Width must be positive: " +
+                                                width);
+        }
+
+        int start = 0;
+        while (start < length) {
+            // Look backwards from the furthest point we can reach for a place
+            // to break the line. The end of the string counts as one.
+            int limit = Math.min (start + width, length);
+            int end = -1;
+            for (int i = limit; i > start; i--) {
+                if (i == length || isWrapSpace (line.charAt (i))) {
+                    end = i;
+                    break;
+                }
+            }
+
+            if (end < 0) {
+                // The word is too long to fit, so hard-break it
+                ret.add (line.substring (start, limit));
+                start = limit;
+            } else {
+                ret.add (line.substring (start, end));
+                // Throw away the whitespace we broke the line at
+                start = end;
+                while (start < length && isWrapSpace (line.charAt (start))) {
+                    start++;
+                }
+            }
+        }
     }
 
     /**
@@ -50,26 +315,193 @@ public class Utilities {
         // having
         LinkedList <String> ret = new LinkedList <String> ();
         for (String line : lines) {
-            if (line.length () > width) {
-                // Add a space at the beginning because it matches any sequence
-                // of up to 50 characters followed by a space
-                String temp = (line + " ").
-                    // The regex will look like, i.e. "(.{1,60})\s+" for a max
-                    // width of 60 characters
-                    replaceAll ("(.{1," + width + "})\\s+", "$1\n");
-                // The last character will now be a newline, so we lop it off.
-                String [] broken =
-                    temp.substring (0, temp.length() - 1).split("\n");
-                for (String brokenLine : broken) {
-                    ret.add (brokenLine);
+            wrapLine (line, width, ret);
+        }
+        return (ret);
+    }
+
+    /**
+     * The number of lines below which wrapLinesParallel wraps sequentially
+     */
+    public static final int PARALLEL_WRAP_THRESHOLD = 8192;
+
+    /**
+     * Wrap an array of strings to a specified length at space boundaries,
+     * spreading the work over a ForkJoinPool
+     *
+     * The lines are wrapped in chunks, and the results are joined back
+     * together in their original order. Arrays shorter than
+     * PARALLEL_WRAP_THRESHOLD are simply wrapped on the calling thread.
+     *
+     * @param lines an array of strings, each on its own line
+     * @param width the maximum width of any string on its own line
+     * @param pool the pool on which to wrap the lines
+     * @return an array of the strings from lines, each no longer than width
+     */
+    public static LinkedList <String> wrapLinesParallel (String [] lines,
+                                                         int width,
+                                                         ForkJoinPool pool) {
+        if (lines.length < PARALLEL_WRAP_THRESHOLD) {
+            return (wrapLines (lines, width));
+        }
+
+        int chunkCount = (lines.length + WrapTask.CHUNK_SIZE - 1) /
+            WrapTask.CHUNK_SIZE;
+        @SuppressWarnings ("unchecked")
+            List <String> [] chunks =
+                (List <String> []) new List <?> [chunkCount];
+        pool.invoke (new WrapTask (lines, width, 0, lines.length, chunks));
+
+        LinkedList <String> ret = new LinkedList <String> ();
+        for (List <String> chunk : chunks) {
+            ret.addAll (chunk);
+        }
+        return (ret);
+    }
+    public static LinkedList <String> wrapLinesParallel (String [] lines,
+                                                         int width) {
+        return (wrapLinesParallel (lines, width, ForkJoinPool.commonPool ()));
+    }
+
+    private static class WrapTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        // Each leaf task wraps at most this many lines
+        static final int CHUNK_SIZE = 1024;
+
+        private final String [] lines;
+        private final int width;
+        private final int from;
+        private final int to;
+        // Leaf tasks store their results at index (from / CHUNK_SIZE)
+        private final List <String> [] chunks;
+
+        public WrapTask (String [] lines, int width, int from, int to,
+                         List <String> [] chunks) {
+            this.lines = lines;
+            this.width = width;
+            this.from = from;
+            this.to = to;
+            this.chunks = chunks;
+        }
+
+        protected void compute () {
+            if (to - from <= CHUNK_SIZE) {
+                ArrayList <String> chunk = new ArrayList <String> (to - from);
+                for (int i = from; i < to; i++) {
+                    wrapLine (lines [i], width, chunk);
                 }
+                chunks [from / CHUNK_SIZE] = chunk;
             } else {
-                ret.add (line);
+                // Split on a chunk boundary so that every leaf starts on one
+                int chunkCount = (to - from + CHUNK_SIZE - 1) / CHUNK_SIZE;
+                int middle = from + (chunkCount / 2) * CHUNK_SIZE;
+                invokeAll (new WrapTask (lines, width, from, middle, chunks),
+                           new WrapTask (lines, width, middle, to, chunks));
             }
         }
-        return (ret);
     }
-    
+
+    /**
+     * Lazily wrap a sequence of strings to a specified length at space
+     * boundaries
+     *
+     * Only one line of input is held at a time, and its wrapped lines can be
+     * taken as soon as it has been read.
+     *
+     * @param lines an iterator over strings, each on its own line
+     * @param width the maximum width of any string on its own line
+     * @return an iterator over the strings from lines, each no longer than
+     * width
+     */
+    public static Iterator <String> wrapLines
+        (Iterator <? extends CharSequence> lines, int width) {
+        return (new WrappingIterator (lines, width));
+    }
+
+    /**
+     * Lazily wrap the lines read from a Reader to a specified length at space
+     * boundaries
+     *
+     * An IOException from reader is thrown as an UncheckedIOException from
+     * the returned iterator.
+     *
+     * @param reader the reader from which lines are read
+     * @param width the maximum width of any string on its own line
+     * @return an iterator over the lines of reader, each no longer than width
+     */
+    public static Iterator <String> wrapLines (Reader reader, int width) {
+        BufferedReader buffered = (reader instanceof BufferedReader) ?
+            (BufferedReader) reader : new BufferedReader (reader);
+        return (wrapLines (buffered.lines ().iterator (), width));
+    }
+
+    /**
+     * Lazily wrap a stream of strings to a specified length at space
+     * boundaries
+     *
+     * @param lines a stream of strings, each on its own line
+     * @param width the maximum width of any string on its own line
+     * @return a sequential stream of the strings from lines, each no longer
+     * than width, which closes lines when it is closed
+     */
+    public static Stream <String> wrapLines
+        (final Stream <? extends CharSequence> lines, int width) {
+        Spliterator <String> spliterator = Spliterators.spliteratorUnknownSize
+            (wrapLines (lines.iterator (), width),
+             Spliterator.ORDERED | Spliterator.NONNULL);
+        return (StreamSupport.stream (spliterator, false)
+                .onClose (new Runnable () {
+                        public void run () {
+                            lines.close ();
+                        }
+                    }));
+    }
+
+    private static class WrappingIterator implements Iterator <String> {
+        private final Iterator <? extends CharSequence> lines;
+        private final int width;
+        // The wrapped pieces of the last line read which haven't been taken
+        private final ArrayDeque <String> pending = new ArrayDeque <String> ();
+
+        public WrappingIterator (Iterator <? extends CharSequence> lines,
+                                 int width) {
+            this.lines = lines;
+            this.width = width;
+        }
+
+        public boolean hasNext () {
+            while (pending.isEmpty ()) {
+                if (!(lines.hasNext ())) {
+                    return (false);
+                }
+                wrapLine (lines.next ().toString (), width, pending);
+            }
+            return (true);
+        }
+
+        public String next () {
+            if (!(hasNext ())) {
+                throw new NoSuchElementException ();
+            }
+            return (pending.removeFirst ());
+        }
+    }
+
+    // The same characters as \s in a regex
+    private static boolean isWrapSpace (char chr) {
+        switch (chr) {
+        case ' ':
+        case '\t':
+        case '\n':
+        case '\u000B':
+        case '\f':
+        case '\r':
+            return (true);
+        default:
+            return (false);
+        }
+    }
+
     /**
      * Find the length of the longest string in an array of strings
      *
@@ -92,7 +524,9 @@ public class Utilities {
      * @return str followed by enough spaces that it is width wide
      */
     public static String pad (String str, int width) {
-        return (str + repeat (' ', width - str.length ()));
+        StringBuilder sb = new StringBuilder (Math.max (str.length (), width));
+        sb.append (str);
+        return (repeat (' ', width - str.length (), sb).toString ());
     }
 
     /**
@@ -103,6 +537,13 @@ public class Utilities {
      * @return str centered within spaces so that it is width wide
      */
     public static String centerString (String str, int width) {
+        StringBuilder sb = new StringBuilder (Math.max (str.length (), width));
+        appendCentered (str, width, sb);
+        return (sb.toString ());
+    }
+
+    private static void appendCentered (String str, int width,
+                                        StringBuilder sb) {
         // This float represents the exact number of spaces necessary on each
         // side of the string. It may be a fraction if the total amount by which
         // to pad turns out to be odd.
@@ -110,9 +551,9 @@ public class Utilities {
 
         // Use floor and ceil so that the "extra" space goes on the right of the
         // string
-        return (repeat (' ', (int) Math.floor (padding)) +
-                str +
-                repeat (' ', (int) Math.ceil (padding)));
+        repeat (' ', (int) Math.floor (padding), sb);
+        sb.append (str);
+        repeat (' ', (int) Math.ceil (padding), sb);
     }
     
     /**
@@ -121,10 +562,68 @@ public class Utilities {
      * @param type a ProgramType indicating the type of program
      * @param lessonNumber the lesson number
      * @param lessonName the name of the lesson
-     * @param width the width of the screen, 60 by default
+     * @param width the width of the screen, or AUTO (the default) for the
+     * width of the terminal
      */
     public static void printHeader (ProgramType type, int lessonNumber,
                                     String lessonName, int width) {
+        // Send the whole header in one write rather than one per line
+        System.out.print (renderHeader (type, lessonNumber, lessonName, width));
+    }
+    public static void printHeader (ProgramType type, int lessonNumber,
+                                    String lessonName) {
+        printHeader (type, lessonNumber, lessonName, AUTO);
+    }
+
+    /**
+     * Render Prof. Tirrito's CMP128 header to a string
+     *
+     * @param type a ProgramType indicating the type of program
+     * @param lessonNumber the lesson number
+     * @param lessonName the name of the lesson
+     * @param width the width of the screen, or AUTO for the width of the
+     * terminal
+     * @return the header exactly as printHeader would print it
+     */
+    public static String renderHeader (ProgramType type, int lessonNumber,
+                                       String lessonName, int width) {
+        StringBuilder sb = new StringBuilder ();
+        appendHeader (type, lessonNumber, lessonName, width, sb);
+        return (sb.toString ());
+    }
+
+    /**
+     * Render Prof. Tirrito's CMP128 header to an Appendable
+     *
+     * The header is built up in memory and handed to out in a single call.
+     *
+     * @param type a ProgramType indicating the type of program
+     * @param lessonNumber the lesson number
+     * @param lessonName the name of the lesson
+     * @param width the width of the screen, or AUTO for the width of the
+     * terminal
+     * @param out the Appendable to which to write the header
+     * @throws IOException if out throws one
+     */
+    public static void renderHeader (ProgramType type, int lessonNumber,
+                                     String lessonName, int width,
+                                     Appendable out) throws IOException {
+        if (out instanceof StringBuilder) {
+            appendHeader (type, lessonNumber, lessonName, width,
+                          (StringBuilder) out);
+        } else {
+            out.append (renderHeader (type, lessonNumber, lessonName, width));
+        }
+    }
+
+    private static int resolveWidth (int width) {
+        return ((width == AUTO) ? Terminal.get ().getWidth () : width);
+    }
+
+    private static void appendHeader (ProgramType type, int lessonNumber,
+                                      String lessonName, int width,
+                                      StringBuilder sb) {
+        width = resolveWidth (width);
         String typeString = "";
         switch (type) {
         case LESSON:
@@ -160,106 +659,1600 @@ public class Utilities {
         String underscoreBorder =
             centerString (repeat ('_', Math.min (longestLine + 2, width)),
                           width);
+        String newline = System.lineSeparator ();
 
-        System.out.println (underscoreBorder); // Top border
-        for (String line : linesWrapped) { // Print header
-            System.out.println (centerString (line, width));
+        sb.append (underscoreBorder).append (newline); // Top border
+        for (String line : linesWrapped) { // Header
+            appendCentered (line, width, sb);
+            sb.append (newline);
         }
-        System.out.println (underscoreBorder); // Bottom border
+        sb.append (underscoreBorder).append (newline); // Bottom border
 
-        // Print one last newline to separate the header
-        System.out.println(); // Separator
-    }
-    public static void printHeader (ProgramType type, int lessonNumber,
-                                    String lessonName) {
-        printHeader (type, lessonNumber, lessonName, 60);
+        // One last newline to separate the header
+        sb.append (newline); // Separator
     }
 
     /**
-     * Print a message wrapped in an asterisk border
+     * Prof. Tirrito's CMP128 header, rendered once and printed as often as
+     * needed
      *
-     * @param lines an array of strings, each one representing one line
-     * @param borderChr the border character, '*' by default
-     * @param width the width of the message box
+     * Since a Header is a VoidFunction which prints itself, it can be passed
+     * straight to mainLoop.
      */
-    public static void printBordered (String [] lines, char borderChr, int width) {
-        // Leave two characters on each side for the border
-        int contentWidth = width - 4;
+    public static final class Header implements PrintFunction {
+        private final char [] text;
 
-        LinkedList <String> linesWrapped = wrapLines (lines, contentWidth);
+        /**
+         * Render a header
+         *
+         * @param type a ProgramType indicating the type of program
+         * @param lessonNumber the lesson number
+         * @param lessonName the name of the lesson
+         * @param width the width of the screen, or AUTO (the default) for
+         * the width of the terminal when the header is rendered
+         */
+        public Header (ProgramType type, int lessonNumber, String lessonName,
+                       int width) {
+            text = renderHeader (type, lessonNumber, lessonName, width)
+                .toCharArray ();
+        }
+        public Header (ProgramType type, int lessonNumber,
+                       String lessonName) {
+            this (type, lessonNumber, lessonName, AUTO);
+        }
 
-        String topBottomBorder = repeat (borderChr, width);
+        /**
+         * Print the header to System.out
+         */
+        public void call () {
+            print (System.out);
+        }
 
-        System.out.println (topBottomBorder); // Top border
-        for (String line : linesWrapped) { // Content
-            System.out.println (borderChr + " " + pad (line, contentWidth)
-                                + " " + borderChr);
+        /**
+         * Print the header
+         *
+         * @param out the stream to which to print the header
+         */
+        public void print (PrintStream out) {
+            out.print (text);
         }
-        System.out.println (topBottomBorder); // Bottom border
 
-        // Print one last newline as a separator
-        System.out.println ();
+        /**
+         * Write the header to an Appendable
+         *
+         * @param out the Appendable to which to write the header
+         * @throws IOException if out throws one
+         */
+        public void write (Appendable out) throws IOException {
+            if (out instanceof Writer) {
+                ((Writer) out).write (text);
+            } else {
+                out.append (CharBuffer.wrap (text));
+            }
+        }
+
+        public String toString () {
+            return (new String (text));
+        }
+    }
+
+    /**
+     * Print a message wrapped in an asterisk border
+     *
+     * @param lines an array of strings, each one representing one line
+     * @param borderChr the border character, '*' by default
+     * @param width the width of the message box, or AUTO (the default) for
+     * the width of the terminal
+     */
+    public static void printBordered (String [] lines, char borderChr, int width) {
+        // Send the whole box in one write rather than one per line
+        System.out.print (renderBordered (lines, borderChr, width));
     }
     public static void printBordered (String [] lines, char borderChr) {
-        printBordered (lines, borderChr, 60);
+        printBordered (lines, borderChr, AUTO);
     }
     public static void printBordered (String [] lines, int width) {
         printBordered (lines, '*', width);
     }
     public static void printBordered (String[] lines) {
-        printBordered (lines, '*', 60);
+        printBordered (lines, '*', AUTO);
     }
 
-    public static void clearScreen () {
-        final String ANSI_CLR = "\u001b[2J";
-        if (System.getProperty ("os.name").contains ("Windows")) {
-            try {
-                new ProcessBuilder ("cmd", "/c", "cls")
-                    .inheritIO ().start ().waitFor ();
-            } catch (IOException e) {
-                System.out.print (ANSI_CLR);
-                System.out.flush ();
-            } catch (Exception e) {}
+    /**
+     * Render a message wrapped in a border to a string
+     *
+     * @param lines an array of strings, each one representing one line
+     * @param borderChr the border character
+     * @param width the width of the message box, or AUTO for the width of
+     * the terminal
+     * @return the message exactly as printBordered would print it
+     */
+    public static String renderBordered (String [] lines, char borderChr,
+                                         int width) {
+        StringBuilder sb = new StringBuilder ();
+        appendBordered (lines, borderChr, width, sb);
+        return (sb.toString ());
+    }
+
+    /**
+     * Render a message wrapped in a border to an Appendable
+     *
+     * The message is built up in memory and handed to out in a single call.
+     *
+     * @param lines an array of strings, each one representing one line
+     * @param borderChr the border character
+     * @param width the width of the message box, or AUTO for the width of
+     * the terminal
+     * @param out the Appendable to which to write the message
+     * @throws IOException if out throws one
+     */
+    public static void renderBordered (String [] lines, char borderChr,
+                                       int width, Appendable out)
+        throws IOException {
+        if (out instanceof StringBuilder) {
+            appendBordered (lines, borderChr, width, (StringBuilder) out);
         } else {
-            System.out.print (ANSI_CLR);
-            System.out.flush ();
+            out.append (renderBordered (lines, borderChr, width));
         }
     }
 
-    private static Class <?> [] getClasses (Object [] objects) {
-        Class <?> [] classes = new Class <?> [objects.length];
-        for (int i = 0; i < objects.length; i++) {
-            classes [i] = objects [i].getClass ();
+    private static void appendBordered (String [] lines, char borderChr,
+                                        int width, StringBuilder sb) {
+        width = resolveWidth (width);
+        // Leave two characters on each side for the border
+        int contentWidth = width - 4;
+
+        LinkedList <String> linesWrapped = wrapLines (lines, contentWidth);
+        String newline = System.lineSeparator ();
+
+        repeat (borderChr, width, sb).append (newline); // Top border
+        for (String line : linesWrapped) { // Content
+            sb.append (borderChr).append (' ').append (line);
+            repeat (' ', contentWidth - line.length (), sb);
+            sb.append (' ').append (borderChr).append (newline);
         }
-        return (classes);
-    }
+        repeat (borderChr, width, sb).append (newline); // Bottom border
 
-    private static void invalid () {
-        System.out.println ("Invalid entry. Please try again.");
-        System.out.println ();
+        // One last newline as a separator
+        sb.append (newline);
     }
 
-    private static String capFirst (String input) {
-        return (Character.toUpperCase (input.charAt (0)) + input.substring (1));
-    }
+    /**
+     * What the terminal we are running on can do
+     *
+     * Detecting this means looking at system properties and the environment,
+     * so it is done once and the result is kept by get.
+     */
+    public static final class Terminal {
+        private static final String CSI = "\u001b[";
 
-    public static interface VoidFunction {
-        void call ();
-    }
+        private final boolean windows;
+        private final boolean ansi;
+        private final boolean tty;
+        // The width from the COLUMNS variable, or -1 if it isn't set
+        private final int columns;
 
-    public static interface UnaryFunction <R, T> {
-        R call (T arg);
-    }
+        // The width we last found, and when (from System.nanoTime) we found it
+        private int width = -1;
+        private long widthCheckedAt;
+        // How long the width may be used before it is looked up again, or 0
+        // to keep it until refreshWidth is called
+        private long widthRefreshNanos = 0;
 
-    public static class GenericScanner {
-        private Boolean readByLines = true;
-        private Scanner internalScanner;
+        private Terminal (boolean windows, boolean ansi, boolean tty,
+                          int columns) {
+            this.windows = windows;
+            this.ansi = ansi;
+            this.tty = tty;
+            this.columns = columns;
+        }
 
-        public GenericScanner () {
-            this (new Scanner (System.in));
+        // Holds the terminal for get, detecting it the first time it is used
+        private static class Current {
+            static final Terminal TERMINAL =
+                detect (System.getProperty ("os.name", ""), System.getenv (),
+                        System.console () != null);
         }
-        public GenericScanner (Scanner scanner) {
-            internalScanner = scanner;
+
+        /**
+         * Get the terminal we are running on
+         *
+         * @return the terminal, detected the first time this is called
+         */
+        public static Terminal get () {
+            return (Current.TERMINAL);
+        }
+
+        /**
+         * Work out what a terminal can do
+         *
+         * @param osName the name of the operating system, as in the os.name
+         * property
+         * @param env the environment variables
+         * @param tty whether standard output is a terminal
+         * @return the capabilities of the terminal
+         */
+        public static Terminal detect (String osName, Map <String, String> env,
+                                       boolean tty) {
+            boolean windows = osName.contains ("Windows");
+            String term = env.get ("TERM");
+            boolean ansi;
+            if (windows) {
+                // The classic console doesn't understand escape sequences, but
+                // Windows Terminal, ConEmu, ANSICON and the Cygwin/MSYS
+                // terminals (which set TERM) do
+                ansi = env.containsKey ("WT_SESSION") ||
+                    env.containsKey ("ANSICON") ||
+                    "ON".equalsIgnoreCase (env.get ("ConEmuANSI")) ||
+                    (term != null && !(term.equals ("dumb")));
+            } else {
+                ansi = !("dumb".equals (term));
+            }
+
+            int columns = -1;
+            try {
+                String columnsString = env.get ("COLUMNS");
+                if (columnsString != null) {
+                    columns = Integer.parseInt (columnsString.trim ());
+                }
+            } catch (NumberFormatException e) {}
+
+            return (new Terminal (windows, ansi, tty,
+                                  (columns > 0) ? columns : -1));
+        }
+
+        public boolean isWindows () {
+            return (windows);
+        }
+
+        public boolean isAnsi () {
+            return (ansi);
+        }
+
+        public boolean isTty () {
+            return (tty);
+        }
+
+        /**
+         * Get the width of the terminal
+         *
+         * The width is looked up the first time this is called, from the
+         * COLUMNS variable or else by running stty once, and is kept after
+         * that. See refreshWidth and setWidthRefreshInterval.
+         *
+         * @return the width of the terminal in columns, or DEFAULT_WIDTH if it
+         * can't be found
+         */
+        public synchronized int getWidth () {
+            if (width < 0 ||
+                (widthRefreshNanos > 0 &&
+                 System.nanoTime () - widthCheckedAt > widthRefreshNanos)) {
+                refreshWidth ();
+            }
+            return (width);
+        }
+
+        /**
+         * Look up the width of the terminal again, for instance after it has
+         * been resized
+         *
+         * @return the new width of the terminal
+         */
+        public synchronized int refreshWidth () {
+            int found = columns;
+            if (found < 0 && tty && !windows) {
+                found = sttyWidth ();
+            }
+            width = (found > 0) ? found : DEFAULT_WIDTH;
+            widthCheckedAt = System.nanoTime ();
+            return (width);
+        }
+
+        /**
+         * Make getWidth look up the width again once it is older than a given
+         * interval
+         *
+         * @param millis the interval in milliseconds, or 0 to keep the width
+         * until refreshWidth is called (the default)
+         */
+        public synchronized void setWidthRefreshInterval (long millis) {
+            widthRefreshNanos = TimeUnit.MILLISECONDS.toNanos (millis);
+        }
+
+        // Ask stty for the size of the controlling terminal, which it prints
+        // as "rows columns"
+        private static int sttyWidth () {
+            try {
+                Process stty = new ProcessBuilder ("stty", "size")
+                    .redirectInput (ProcessBuilder.Redirect.from
+                                    (new File ("/dev/tty")))
+                    .redirectError (ProcessBuilder.Redirect.to
+                                    (new File ("/dev/null")))
+                    .start ();
+                BufferedReader reader = new BufferedReader
+                    (new InputStreamReader (stty.getInputStream ()));
+                String line;
+                try {
+                    line = reader.readLine ();
+                } finally {
+                    reader.close ();
+                }
+                if (stty.waitFor () == 0 && line != null) {
+                    String [] size = line.trim ().split (" +");
+                    if (size.length == 2) {
+                        return (Integer.parseInt (size [1]));
+                    }
+                }
+            } catch (Exception e) {}
+            return (-1);
+        }
+
+        /**
+         * @return the sequence which clears the screen and homes the cursor,
+         * or null if the terminal doesn't understand escape sequences
+         */
+        public String getClearSequence () {
+            return (ansi ? CSI + "H" + CSI + "2J" : null);
+        }
+
+        /**
+         * @return the sequence which moves the cursor to the top left of the
+         * screen, or null if the terminal doesn't understand escape sequences
+         */
+        public String getHomeSequence () {
+            return (ansi ? CSI + "H" : null);
+        }
+    }
+
+    public static void clearScreen () {
+        Terminal terminal = Terminal.get ();
+        if (terminal.isAnsi ()) {
+            System.out.print (terminal.getClearSequence ());
+            System.out.flush ();
+        } else if (terminal.isWindows () && terminal.isTty ()) {
+            // The classic Windows console can only be cleared by cls
+            try {
+                new ProcessBuilder ("cmd", "/c", "cls")
+                    .inheritIO ().start ().waitFor ();
+            } catch (Exception e) {}
+        }
+    }
+
+    /**
+     * Draws whole screens on an ANSI terminal, sending only the rows which
+     * have changed since the last screen it drew
+     *
+     * Rows are addressed by absolute cursor positions, so a frame has to fit
+     * on the terminal. Anything printed below the frame (such as a prompt) is
+     * cleared when the next frame is drawn. Once other output may have
+     * scrolled the terminal, invalidate has to be called; the next frame is
+     * then printed after that output, which stays visible, and the frame
+     * after that is drawn from scratch. A frame can also be drawn below a
+     * header which only prints to System.out; the header is printed when
+     * the screen is drawn from scratch, and the rows below it are diffed
+     * like any others.
+     *
+     * On a terminal which doesn't understand escape sequences, every frame is
+     * simply printed in full.
+     */
+    public static class ScreenRenderer {
+        private static final String CSI = "\u001b[";
+        // Save and restore the cursor position
+        private static final String SAVE = "\u001b7";
+        private static final String RESTORE = "\u001b8";
+
+        private final PrintStream out;
+        private final Terminal terminal;
+        // The rows of the last frame drawn, or null if the screen is unknown
+        private String [] lastFrame;
+        // Whether other output has been printed since the last frame
+        private boolean scrolled = false;
+        // The header the last frame was drawn below, if any; its rows are
+        // then counted from the position saved below the header
+        private VoidFunction lastHeader;
+
+        public ScreenRenderer () {
+            this (System.out);
+        }
+        public ScreenRenderer (PrintStream out) {
+            this (out, Terminal.get ());
+        }
+        public ScreenRenderer (PrintStream out, Terminal terminal) {
+            this.out = out;
+            this.terminal = terminal;
+        }
+
+        /**
+         * Draw a frame, leaving the cursor on the line below it
+         *
+         * @param frame the text of the whole screen, one row per line
+         */
+        public void render (String frame) {
+            render (null, frame);
+        }
+
+        /**
+         * Draw a frame below a header, leaving the cursor on the line below
+         * the frame
+         *
+         * The header is only called when the screen is drawn from scratch,
+         * so it should print the same thing every time it is passed; a
+         * different header starts the screen again.
+         *
+         * @param header a function which prints the header to System.out,
+         * or null for none
+         * @param frame the text below the header, one row per line
+         */
+        public void render (VoidFunction header, String frame) {
+            if (!(terminal.isAnsi ()) || scrolled) {
+                // Print after whatever is there; where that leaves the frame
+                // is unknown, so the next one is drawn from scratch
+                printHeader (header);
+                out.print (frame);
+                out.flush ();
+                scrolled = false;
+                lastFrame = null;
+                return;
+            }
+
+            String [] rows = splitRows (frame);
+            StringBuilder sb = new StringBuilder ();
+
+            if (header != lastHeader) {
+                lastFrame = null;
+            }
+            if (lastFrame == null) {
+                lastHeader = header;
+                if (header == null) {
+                    sb.append (terminal.getClearSequence ());
+                } else {
+                    out.print (terminal.getClearSequence ());
+                    printHeader (header);
+                    sb.append (SAVE);
+                }
+            }
+            for (int i = 0; i < rows.length; i++) {
+                if (lastFrame == null || i >= lastFrame.length ||
+                    !(rows [i].equals (lastFrame [i]))) {
+                    // Move to the row, redraw it and clear what was after it
+                    moveTo (i, sb).append (rows [i]).append (CSI).append ('K');
+                }
+            }
+            // Clear everything below the frame: rows left over from a longer
+            // frame, and whatever was printed after the last one
+            moveTo (rows.length, sb).append (CSI).append ('J');
+
+            out.print (sb);
+            out.flush ();
+            lastFrame = rows;
+        }
+
+        /**
+         * Note that other output has been printed since the last frame, so
+         * the screen is no longer known
+         *
+         * The next frame is printed in full after that output rather than
+         * over it, and the frame after that is drawn on a cleared screen.
+         */
+        public void invalidate () {
+            lastFrame = null;
+            scrolled = true;
+        }
+
+        /**
+         * Run a function, capturing what it prints instead of printing it
+         *
+         * The function is given a stream of its own, so other threads'
+         * output to System.out is never captured.
+         *
+         * @param function the function to run
+         * @return everything function printed
+         */
+        public static String capture (PrintFunction function) {
+            if (function instanceof Header) {
+                // No need to run it, we already know what it prints
+                return (function.toString ());
+            }
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream ();
+            PrintStream stream = new PrintStream (buffer, true);
+            function.print (stream);
+            stream.flush ();
+            return (buffer.toString ());
+        }
+
+        private void printHeader (VoidFunction header) {
+            if (header != null) {
+                out.flush ();
+                header.call ();
+                System.out.flush ();
+            }
+        }
+
+        private StringBuilder moveTo (int row, StringBuilder sb) {
+            if (lastHeader == null) {
+                // ANSI rows and columns count from 1
+                return (sb.append (CSI).append (row + 1).append (";1H"));
+            }
+            // A count of 0 would move by one row
+            sb.append (RESTORE);
+            if (row > 0) {
+                sb.append (CSI).append (row).append ('B');
+            }
+            return (sb);
+        }
+
+        private static String [] splitRows (String frame) {
+            ArrayList <String> rows = new ArrayList <String> ();
+            int start = 0;
+            for (int i = 0; i < frame.length (); i++) {
+                if (frame.charAt (i) == '\n') {
+                    int end = (i > start && frame.charAt (i - 1) == '\r') ?
+                        i - 1 : i;
+                    rows.add (frame.substring (start, end));
+                    start = i + 1;
+                }
+            }
+            // A trailing newline doesn't start another row
+            if (start < frame.length ()) {
+                rows.add (frame.substring (start));
+            }
+            return (rows.toArray (new String [rows.size ()]));
+        }
+    }
+
+    private static Class <?> [] getClasses (Object [] objects) {
+        Class <?> [] classes = new Class <?> [objects.length];
+        for (int i = 0; i < objects.length; i++) {
+            classes [i] = objects [i].getClass ();
+        }
+        return (classes);
+    }
+
+    private static void invalid () {
+        System.out.println ("Invalid entry. Please try again.");
+        System.out.println ();
+    }
+
+    private static String capFirst (String input) {
+        return (Character.toUpperCase (input.charAt (0)) + input.substring (1));
+    }
+
+    public static interface VoidFunction {
+        void call ();
+    }
+
+    /**
+     * A function which prints, and can print to any stream, so that what it
+     * prints can be captured without touching System.out
+     */
+    public static interface PrintFunction extends VoidFunction {
+        void print (PrintStream out);
+    }
+
+    public static interface UnaryFunction <R, T> {
+        R call (T arg);
+    }
+
+    /**
+     * Makes the threads which do work in the background: virtual threads on
+     * JVMs which have them, and daemon threads otherwise
+     */
+    private static class Background {
+        static final ThreadFactory THREADS = threads ();
+
+        private static ThreadFactory threads () {
+            try {
+                // Thread.ofVirtual ().factory (), on Java 21 and later
+                Object builder =
+                    Thread.class.getMethod ("ofVirtual").invoke (null);
+                return ((ThreadFactory)
+                        Class.forName ("java.lang.Thread$Builder")
+                        .getMethod ("factory").invoke (builder));
+            } catch (ReflectiveOperationException e) {
+                return (new ThreadFactory () {
+                        public Thread newThread (Runnable task) {
+                            Thread thread = new Thread (task);
+                            thread.setDaemon (true);
+                            return (thread);
+                        }
+                    });
+            }
+        }
+    }
+
+    public static class GenericScanner {
+        // The Scanner methods which read each type, looked up the first time
+        // the type is read
+        private static final ClassValue <ParserCache> PARSERS =
+            new ClassValue <ParserCache> () {
+                protected ParserCache computeValue (Class <?> type) {
+                    return (new ParserCache (type, "next"));
+                }
+            };
+        // The Scanner methods which check whether each type can be read
+        private static final ClassValue <ParserCache> CHECKERS =
+            new ClassValue <ParserCache> () {
+                protected ParserCache computeValue (Class <?> type) {
+                    return (new ParserCache (type, "hasNext"));
+                }
+            };
+
+        /**
+         * The Scanner methods which read (or check for) one type, by argument
+         * types
+         */
+        private static final class ParserCache {
+            private final String methodName;
+            // The common case of no arguments, found on first use
+            private volatile MethodHandle noArgs;
+            private final ConcurrentHashMap <List <Class <?>>, MethodHandle>
+                withArgs =
+                new ConcurrentHashMap <List <Class <?>>, MethodHandle> ();
+
+            public ParserCache (Class <?> returnType, String prefix) {
+                // Read wrapper types with the method for their primitive type
+                Class <?> actualType;
+                try {
+                    actualType =
+                        (Class <?>) returnType.getField ("TYPE").get (null);
+                } catch (NoSuchFieldException|ClassCastException e) {
+                    actualType = returnType;
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException (e);
+                }
+
+                String typeName = actualType.getName ();
+                methodName = prefix +
+                    capFirst (typeName.substring (typeName.lastIndexOf ('.') +
+                                                  1));
+            }
+
+            /**
+             * Find the parser for a list of arguments
+             *
+             * @param args the arguments which will be passed to the parser
+             * @return a handle of type (Scanner, Object[])Object which calls
+             * the Scanner method with the elements of the array
+             */
+            public MethodHandle get (Object [] args) {
+                if (args.length == 0) {
+                    MethodHandle handle = noArgs;
+                    if (handle == null) {
+                        handle = noArgs = find (new Class <?> [0]);
+                    }
+                    return (handle);
+                }
+
+                Class <?> [] argTypes = getClasses (args);
+                List <Class <?>> key = Arrays.asList (argTypes);
+                MethodHandle handle = withArgs.get (key);
+                if (handle == null) {
+                    handle = find (argTypes);
+                    withArgs.put (key, handle);
+                }
+                return (handle);
+            }
+
+            private MethodHandle find (Class <?> [] argTypes) {
+                Method method;
+                try {
+                    method = Scanner.class.getMethod (methodName, argTypes);
+                } catch (NoSuchMethodException e) {
+                    // Arguments arrive boxed, but a radix is an int
+                    try {
+                        method = Scanner.class.getMethod (methodName,
+                                                          unboxed (argTypes));
+                    } catch (NoSuchMethodException e2) {
+                        throw new RuntimeException (e);
+                    }
+                }
+
+                try {
+                    return (MethodHandles.publicLookup ().unreflect (method)
+                            .asSpreader (Object [].class, argTypes.length)
+                            .asType (MethodType.methodType
+                                     (Object.class, Scanner.class,
+                                      Object [].class)));
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException (e);
+                }
+            }
+
+            private static Class <?> [] unboxed (Class <?> [] types) {
+                Class <?> [] unboxed = new Class <?> [types.length];
+                for (int i = 0; i < types.length; i++) {
+                    try {
+                        unboxed [i] =
+                            (Class <?>) types [i].getField ("TYPE").get (null);
+                    } catch (Exception e) {
+                        unboxed [i] = types [i];
+                    }
+                }
+                return (unboxed);
+            }
+        }
+
+        /**
+         * Reads the first token of a line as a new Scanner on the line would,
+         * without making the Scanner
+         *
+         * Only plain input is handled: ASCII digits with an optional sign,
+         * simple decimals, and true or false. Anything else (grouping
+         * separators, NaN, out of range values, blank lines...) is left to a
+         * real Scanner, so the results and errors are the same as they have
+         * always been.
+         */
+        private static final class LineTokenizer {
+            private final boolean decimalPoint;
+            // Whether to read decimals with a point whatever the locale, and
+            // BigIntegers and BigDecimals as well
+            private boolean strict;
+
+            // The line being parsed, and the bounds of its first token
+            private CharSequence line;
+            private int start;
+            private int end;
+
+            public LineTokenizer () {
+                // A Scanner reads decimals in the default locale, so we can
+                // only read them if it uses a decimal point
+                decimalPoint = DecimalFormatSymbols.getInstance
+                    (Locale.getDefault (Locale.Category.FORMAT))
+                    .getDecimalSeparator () == '.';
+            }
+
+            /**
+             * Parse the first token of a line
+             *
+             * @param line the line to parse
+             * @param type the type to read
+             * @return the value read, or null if a Scanner has to read it
+             */
+            public Object parse (CharSequence line, Class <?> type) {
+                if (!(reset (line))) {
+                    return (null);
+                }
+
+                if (type == Integer.class) {
+                    return (parseLong (Integer.MIN_VALUE, Integer.MAX_VALUE) ?
+                            (Object) Integer.valueOf ((int) longValue) : null);
+                } else if (type == Long.class) {
+                    return (parseLong (Long.MIN_VALUE, Long.MAX_VALUE) ?
+                            (Object) Long.valueOf (longValue) : null);
+                } else if (type == Short.class) {
+                    return (parseLong (Short.MIN_VALUE, Short.MAX_VALUE) ?
+                            (Object) Short.valueOf ((short) longValue) : null);
+                } else if (type == Byte.class) {
+                    return (parseLong (Byte.MIN_VALUE, Byte.MAX_VALUE) ?
+                            (Object) Byte.valueOf ((byte) longValue) : null);
+                } else if (type == Double.class) {
+                    return (parseDouble () ?
+                            (Object) Double.valueOf (doubleValue) : null);
+                } else if (type == Float.class) {
+                    return (isPlainDecimal () ?
+                            (Object) Float.valueOf (token ()) : null);
+                } else if (type == Boolean.class) {
+                    return (parseBoolean ());
+                } else if (strict && type == BigInteger.class) {
+                    return (isPlainInteger () ?
+                            new BigInteger (token ()) : null);
+                } else if (strict && type == BigDecimal.class) {
+                    return (parseBigDecimal ());
+                }
+                return (null);
+            }
+
+            // The types which parse can read in strict mode
+            private static final Set <Class <?>> STRICT_TYPES =
+                new HashSet <Class <?>> (Arrays.<Class <?>> asList
+                                         (Integer.class, Long.class,
+                                          Short.class, Byte.class,
+                                          Double.class, Float.class,
+                                          Boolean.class, BigInteger.class,
+                                          BigDecimal.class));
+
+            /**
+             * @param type a type to read
+             * @return whether parse reads the type in strict mode
+             */
+            public static boolean isStrictType (Class <?> type) {
+                return (STRICT_TYPES.contains (type));
+            }
+
+            /**
+             * Parse the first token of a line as a long, without boxing it
+             *
+             * @param line the line to parse
+             * @param min the smallest value allowed
+             * @param max the largest value allowed
+             * @return true if the value was read into longValue, or false if
+             * a Scanner has to read it
+             */
+            public boolean readLong (CharSequence line, long min, long max) {
+                return (reset (line) && parseLong (min, max));
+            }
+
+            /**
+             * Parse the first token of a line as a double, without boxing it
+             *
+             * @param line the line to parse
+             * @return true if the value was read into doubleValue, or false if
+             * a Scanner has to read it
+             */
+            public boolean readDouble (CharSequence line) {
+                return (reset (line) && parseDouble ());
+            }
+
+            // The values found by parseLong and parseDouble
+            private long longValue;
+            private double doubleValue;
+            // Whether the last token was definitely invalid, so there is no
+            // need to ask a Scanner about it
+            private boolean rejected;
+
+            private boolean reset (CharSequence line) {
+                this.line = line;
+                rejected = false;
+                int length = line.length ();
+                start = 0;
+                while (start < length &&
+                       Character.isWhitespace (line.charAt (start))) {
+                    start++;
+                }
+                end = start;
+                while (end < length &&
+                       !(Character.isWhitespace (line.charAt (end)))) {
+                    end++;
+                }
+                return (end > start);
+            }
+
+            private String token () {
+                return (line.subSequence (start, end).toString ());
+            }
+
+            private boolean parseLong (long min, long max) {
+                int i = start;
+                boolean negative = false;
+                char first = line.charAt (i);
+                if (first == '-' || first == '+') {
+                    negative = (first == '-');
+                    i++;
+                }
+                if (i == end) {
+                    return (false);
+                }
+
+                // Build the value up negatively, since there is one more
+                // negative long than positive, and check for overflow before
+                // each step
+                long limit = negative ? min : -max;
+                long value = 0;
+                boolean overflow = false;
+                for (; i < end; i++) {
+                    char chr = line.charAt (i);
+                    if (chr < '0' || chr > '9') {
+                        return (false);
+                    }
+                    int digit = chr - '0';
+                    if (value < (limit + digit) / 10) {
+                        overflow = true;
+                    } else {
+                        value = value * 10 - digit;
+                    }
+                }
+                if (overflow) {
+                    // Plain digits, but too big: nobody could read this
+                    rejected = true;
+                    return (false);
+                }
+                longValue = negative ? value : -value;
+                return (true);
+            }
+
+            // [-+]? digits
+            private boolean isPlainInteger () {
+                int i = start;
+                if (line.charAt (i) == '-' || line.charAt (i) == '+') {
+                    i++;
+                }
+                if (i == end) {
+                    return (false);
+                }
+                for (; i < end; i++) {
+                    if (!(isDigit (line.charAt (i)))) {
+                        return (false);
+                    }
+                }
+                return (true);
+            }
+
+            // [-+]? (digits (. digits?)? | . digits) ([eE] [-+]? digits)?
+            private boolean isPlainDecimal () {
+                if (!decimalPoint && !strict) {
+                    return (false);
+                }
+                int i = start;
+                if (line.charAt (i) == '-' || line.charAt (i) == '+') {
+                    i++;
+                }
+                int digits = 0;
+                for (; i < end && isDigit (line.charAt (i)); i++) {
+                    digits++;
+                }
+                if (i < end && line.charAt (i) == '.') {
+                    for (i++; i < end && isDigit (line.charAt (i)); i++) {
+                        digits++;
+                    }
+                }
+                if (digits == 0) {
+                    return (false);
+                }
+                if (i < end && (line.charAt (i) == 'e' ||
+                                line.charAt (i) == 'E')) {
+                    i++;
+                    if (i < end && (line.charAt (i) == '-' ||
+                                    line.charAt (i) == '+')) {
+                        i++;
+                    }
+                    int exponentStart = i;
+                    while (i < end && isDigit (line.charAt (i))) {
+                        i++;
+                    }
+                    if (i == exponentStart) {
+                        return (false);
+                    }
+                }
+                return (i == end);
+            }
+
+            // The powers of ten which a double holds exactly
+            private static final double [] POWERS_OF_TEN = {
+                1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21,
+                1e22
+            };
+
+            private boolean parseDouble () {
+                if (!(isPlainDecimal ())) {
+                    return (false);
+                }
+
+                // Collect the significant digits as a long and the power of
+                // ten to scale them by. If the digits and the power of ten are
+                // both exact as doubles, one multiplication or division rounds
+                // correctly; otherwise leave it to Double.parseDouble.
+                int i = start;
+                boolean negative = (line.charAt (i) == '-');
+                if (negative || line.charAt (i) == '+') {
+                    i++;
+                }
+                long digits = 0;
+                int significant = 0;
+                int scale = 0;
+                boolean fraction = false;
+                for (; i < end; i++) {
+                    char chr = line.charAt (i);
+                    if (chr == '.') {
+                        fraction = true;
+                        continue;
+                    } else if (!(isDigit (chr))) {
+                        break;
+                    }
+                    if (digits != 0 || chr != '0') {
+                        digits = digits * 10 + (chr - '0');
+                        significant++;
+                    }
+                    if (fraction) {
+                        scale--;
+                    }
+                }
+
+                boolean exact = (significant <= 15);
+                if (i < end) {
+                    // Skip the e
+                    i++;
+                    boolean negativeExponent = (line.charAt (i) == '-');
+                    if (negativeExponent || line.charAt (i) == '+') {
+                        i++;
+                    }
+                    int exponent = 0;
+                    for (; i < end; i++) {
+                        exponent = exponent * 10 + (line.charAt (i) - '0');
+                        if (exponent > 1000) {
+                            exact = false;
+                            break;
+                        }
+                    }
+                    scale += negativeExponent ? -exponent : exponent;
+                }
+
+                if (exact && scale >= -22 && scale <= 22) {
+                    double value = (double) digits;
+                    if (scale > 0) {
+                        value *= POWERS_OF_TEN [scale];
+                    } else if (scale < 0) {
+                        value /= POWERS_OF_TEN [-scale];
+                    }
+                    doubleValue = negative ? -value : value;
+                } else {
+                    doubleValue = Double.parseDouble (token ());
+                }
+                return (true);
+            }
+
+            private BigDecimal parseBigDecimal () {
+                if (isPlainDecimal ()) {
+                    try {
+                        return (new BigDecimal (token ()));
+                    } catch (NumberFormatException e) {
+                        // The exponent is too big for a BigDecimal
+                        rejected = true;
+                    }
+                }
+                return (null);
+            }
+
+            private Boolean parseBoolean () {
+                if (matchesIgnoreCase ("true")) {
+                    return (Boolean.TRUE);
+                } else if (matchesIgnoreCase ("false")) {
+                    return (Boolean.FALSE);
+                }
+                return (null);
+            }
+
+            private boolean matchesIgnoreCase (String word) {
+                if (end - start != word.length ()) {
+                    return (false);
+                }
+                for (int i = 0; i < word.length (); i++) {
+                    if (Character.toLowerCase (line.charAt (start + i)) !=
+                        word.charAt (i)) {
+                        return (false);
+                    }
+                }
+                return (true);
+            }
+
+            private static boolean isDigit (char chr) {
+                return (chr >= '0' && chr <= '9');
+            }
+        }
+
+        /**
+         * Splits bytes into tokens and lines without decoding them first
+         *
+         * Bytes are read from a channel into a large buffer. Tokens are
+         * separated by ASCII whitespace, and are handed out as views of the
+         * buffer which are only good until the next read.
+         */
+        private static class ByteTokenizer {
+            private static final int BUFFER_SIZE = 1 << 16;
+
+            private final ReadableByteChannel channel;
+            private final Charset charset;
+            // The unread bytes are between the position and the limit
+            protected ByteBuffer buffer;
+            private final ByteView token = new ByteView ();
+            // Whether the last line ended in \r, so a \n next is part of it
+            private boolean pendingLineFeed;
+
+            public ByteTokenizer (ReadableByteChannel channel,
+                                  Charset charset) {
+                this (channel, charset, ByteBuffer.allocate (BUFFER_SIZE));
+                buffer.flip ();
+            }
+
+            protected ByteTokenizer (ReadableByteChannel channel,
+                                     Charset charset, ByteBuffer buffer) {
+                this.channel = channel;
+                this.charset = charset;
+                this.buffer = buffer;
+            }
+
+            /**
+             * Make more bytes available, keeping all of the unread ones
+             *
+             * @return false if there are no more bytes to read
+             * @throws IOException if the channel throws one
+             */
+            protected boolean refill () throws IOException {
+                if (buffer.position () == 0 &&
+                    buffer.limit () == buffer.capacity ()) {
+                    // The buffer is full of one token or line; make room
+                    ByteBuffer bigger =
+                        ByteBuffer.allocate (buffer.capacity () * 2);
+                    bigger.put (buffer);
+                    buffer = bigger;
+                } else {
+                    buffer.compact ();
+                }
+
+                int read;
+                do {
+                    read = channel.read (buffer);
+                } while (read == 0);
+                buffer.flip ();
+                return (read > 0);
+            }
+
+            private boolean fill () {
+                try {
+                    return (refill ());
+                } catch (IOException e) {
+                    throw new UncheckedIOException (e);
+                }
+            }
+
+            /**
+             * @return whether there is another token
+             */
+            public boolean hasNextToken () {
+                pendingLineFeed = false;
+                while (true) {
+                    int limit = buffer.limit ();
+                    for (int i = buffer.position (); i < limit; i++) {
+                        if (!(isSpace (buffer.get (i)))) {
+                            buffer.position (i);
+                            return (true);
+                        }
+                    }
+                    buffer.position (limit);
+                    if (!(fill ())) {
+                        return (false);
+                    }
+                }
+            }
+
+            /**
+             * @return whether there is another line
+             */
+            public boolean hasNextLine () {
+                if (pendingLineFeed) {
+                    // Finish off a \r\n
+                    pendingLineFeed = false;
+                    if ((buffer.hasRemaining () || fill ()) &&
+                        buffer.get (buffer.position ()) == '\n') {
+                        buffer.position (buffer.position () + 1);
+                    }
+                }
+                return (buffer.hasRemaining () || fill ());
+            }
+
+            /**
+             * Read the next token
+             *
+             * @return a view of the token, good until the next read
+             */
+            public CharSequence nextToken () {
+                if (!(hasNextToken ())) {
+                    throw new NoSuchElementException ();
+                }
+                int i = buffer.position ();
+                while (true) {
+                    int limit = buffer.limit ();
+                    while (i < limit && !(isSpace (buffer.get (i)))) {
+                        i++;
+                    }
+                    if (i < limit) {
+                        break;
+                    }
+                    int offset = i - buffer.position ();
+                    if (!(fill ())) {
+                        i = buffer.limit ();
+                        break;
+                    }
+                    i = buffer.position () + offset;
+                }
+                token.set (buffer.position (), i);
+                buffer.position (i);
+                return (token);
+            }
+
+            /**
+             * Read the rest of the current line
+             *
+             * @return the line, without its line terminator
+             */
+            public String nextLine () {
+                return (nextLineView ().toString ());
+            }
+
+            /**
+             * Read the rest of the current line without decoding it
+             *
+             * @return a view of the line without its line terminator, good
+             * until the next read
+             */
+            public CharSequence nextLineView () {
+                if (!(hasNextLine ())) {
+                    throw new NoSuchElementException ("No line found");
+                }
+
+                int i = buffer.position ();
+                while (true) {
+                    int limit = buffer.limit ();
+                    while (i < limit && buffer.get (i) != '\n' &&
+                           buffer.get (i) != '\r') {
+                        i++;
+                    }
+                    if (i < limit) {
+                        token.set (buffer.position (), i);
+                        pendingLineFeed = (buffer.get (i) == '\r');
+                        buffer.position (i + 1);
+                        return (token);
+                    }
+                    int offset = i - buffer.position ();
+                    if (!(fill ())) {
+                        // The last line has no terminator
+                        token.set (buffer.position (), buffer.limit ());
+                        buffer.position (buffer.limit ());
+                        return (token);
+                    }
+                    i = buffer.position () + offset;
+                }
+            }
+
+            public void close () {
+                try {
+                    channel.close ();
+                } catch (IOException e) {
+                    throw new UncheckedIOException (e);
+                }
+            }
+
+            private String decode (int from, int to) {
+                byte [] bytes = new byte [to - from];
+                for (int i = from; i < to; i++) {
+                    bytes [i - from] = buffer.get (i);
+                }
+                return (new String (bytes, charset));
+            }
+
+            // The same as Character.isWhitespace for ASCII
+            private static boolean isSpace (byte b) {
+                return (b == ' ' || (b >= 0x09 && b <= 0x0D) ||
+                        (b >= 0x1C && b <= 0x1F));
+            }
+
+            /**
+             * A token in the buffer, read as characters
+             *
+             * Bytes map straight to characters, which is right for the ASCII
+             * that numbers are made of; toString decodes properly.
+             */
+            private final class ByteView implements CharSequence {
+                private int from;
+                private int to;
+
+                public void set (int from, int to) {
+                    this.from = from;
+                    this.to = to;
+                }
+
+                public int length () {
+                    return (to - from);
+                }
+
+                public char charAt (int index) {
+                    return ((char) (buffer.get (from + index) & 0xFF));
+                }
+
+                public CharSequence subSequence (int start, int end) {
+                    return (decode (from + start, from + end));
+                }
+
+                public String toString () {
+                    return (decode (from, to));
+                }
+            }
+        }
+
+        /**
+         * Splits a file into tokens and lines straight from memory-mapped
+         * windows of it
+         *
+         * There is no copying into a buffer of our own: refilling maps a new
+         * window starting at the first unread byte. A window is normally
+         * WINDOW_SIZE bytes, but grows for a token or line longer than that,
+         * as far as a buffer can go.
+         */
+        private static final class MappedTokenizer extends ByteTokenizer {
+            private static final long WINDOW_SIZE = 1L << 28;
+
+            private final FileChannel file;
+            // Where in the file to stop reading
+            private final long end;
+            // Where in the file the current window starts
+            private long base;
+
+            public MappedTokenizer (FileChannel file, Charset charset)
+                throws IOException {
+                this (file, charset, 0, file.size ());
+            }
+
+            /**
+             * Make a tokenizer for part of a file
+             *
+             * @param file the file to read
+             * @param charset the charset with which to decode text
+             * @param from where in the file to start reading
+             * @param to where in the file to stop reading
+             */
+            public MappedTokenizer (FileChannel file, Charset charset,
+                                    long from, long to) {
+                super (file, charset, ByteBuffer.allocate (0));
+                this.file = file;
+                base = from;
+                end = to;
+            }
+
+            @Override
+            protected boolean refill () throws IOException {
+                long from = base + buffer.position ();
+                long unread = buffer.remaining ();
+                if (from + unread == end) {
+                    return (false);
+                }
+                long length = Math.min (end - from,
+                                        Math.max (WINDOW_SIZE, unread * 2));
+                if (length > Integer.MAX_VALUE) {
+                    if (unread == Integer.MAX_VALUE) {
+                        throw new IOException
+                            ("Token or line too long to map.");
+                    }
+                    length = Integer.MAX_VALUE;
+                }
+                buffer = file.map (FileChannel.MapMode.READ_ONLY, from,
+                                   length);
+                base = from;
+                return (true);
+            }
+        }
+
+        /**
+         * Reads lines or tokens ahead on a background thread into a bounded
+         * queue
+         *
+         * The end of the input and any exception from reading are queued as
+         * well, and stay at the head of the queue once they are reached.
+         */
+        private static final class ReadAhead implements Runnable {
+            private static final Object END = new Object ();
+
+            private final GenericScanner source;
+            private final BlockingQueue <Object> queue;
+            private final Thread thread;
+            private volatile boolean stopped = false;
+            // Whether run has returned, and whether it should close the
+            // input when it does; both are guarded by this
+            private boolean finished = false;
+            private boolean closeWhenFinished = false;
+            // An item taken from the queue but not yet handed out
+            private Object pending;
+
+            public ReadAhead (GenericScanner source, int capacity) {
+                this.source = source;
+                queue = new ArrayBlockingQueue <Object> (capacity);
+                thread = Background.THREADS.newThread (this);
+                thread.start ();
+            }
+
+            public void run () {
+                try {
+                    while (!stopped) {
+                        Object item;
+                        try {
+                            item = source.readRaw ();
+                        } catch (NoSuchElementException e) {
+                            item = END;
+                        } catch (Throwable e) {
+                            // Even an Error has to reach the reader, or it
+                            // would wait forever
+                            item = e;
+                        }
+                        queue.put (item);
+                        if (!(item instanceof String)) {
+                            return;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                } finally {
+                    boolean close;
+                    synchronized (this) {
+                        finished = true;
+                        close = closeWhenFinished;
+                    }
+                    if (close) {
+                        source.closeInput ();
+                    }
+                }
+            }
+
+            /**
+             * Wait for the next line or token to be read, but no longer than
+             * a given time
+             *
+             * @param nanos the longest time to wait, in nanoseconds
+             * @return true if the next take won't have to wait, or false if
+             * the time ran out first
+             */
+            public boolean await (long nanos) {
+                if (pending == null) {
+                    try {
+                        pending = queue.poll (nanos, TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread ().interrupt ();
+                        throw new RuntimeException (e);
+                    }
+                }
+                return (pending != null);
+            }
+
+            /**
+             * Wait until the next line or token is read, or the input ends
+             *
+             * @return false if the input has ended
+             */
+            public boolean hasNext () {
+                if (pending == null) {
+                    try {
+                        pending = queue.take ();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread ().interrupt ();
+                        throw new RuntimeException (e);
+                    }
+                }
+                return (pending != END);
+            }
+
+            /**
+             * Take the next line or token, waiting for it if need be
+             *
+             * @return the line or token
+             */
+            public String take () {
+                Object item = pending;
+                if (item == null) {
+                    try {
+                        item = queue.take ();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread ().interrupt ();
+                        throw new RuntimeException (e);
+                    }
+                }
+                return (unwrap (item));
+            }
+
+            private String unwrap (Object item) {
+                pending = null;
+                if (item == END) {
+                    pending = item;
+                    throw new NoSuchElementException ("No line found");
+                } else if (item instanceof RuntimeException) {
+                    pending = item;
+                    throw (RuntimeException) item;
+                } else if (item instanceof Error) {
+                    pending = item;
+                    throw (Error) item;
+                } else if (item instanceof Throwable) {
+                    pending = item;
+                    throw new RuntimeException ((Throwable) item);
+                }
+                return ((String) item);
+            }
+
+            /**
+             * Stop reading ahead, and close the input once nothing is
+             * reading it
+             *
+             * An interrupt doesn't end every read (one from System.in, for
+             * instance), so if the reader thread hasn't finished within
+             * STOP_TIMEOUT, it closes the input itself when its read returns.
+             */
+            public void stopAndClose () {
+                stopped = true;
+                thread.interrupt ();
+                try {
+                    thread.join (STOP_TIMEOUT);
+                } catch (InterruptedException e) {
+                    Thread.currentThread ().interrupt ();
+                }
+                synchronized (this) {
+                    if (!finished) {
+                        closeWhenFinished = true;
+                        return;
+                    }
+                }
+                source.closeInput ();
+            }
+
+            // How long to wait for the reader thread to finish, in
+            // milliseconds
+            private static final long STOP_TIMEOUT = 1000;
+        }
+
+        /**
+         * Reads every value in one part of a file, for readAll
+         */
+        private static abstract class SegmentReader {
+            // The component type of the arrays read
+            final Class <?> componentType;
+
+            SegmentReader (Class <?> componentType) {
+                this.componentType = componentType;
+            }
+
+            /**
+             * @param scanner a scanner reading the tokens of one part
+             * @return an array of all of the values in the part
+             */
+            abstract Object read (GenericScanner scanner);
+        }
+
+        private static final class ReadTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final FileChannel file;
+            // Part i of the file is from bounds [i] to bounds [i + 1]
+            private final long [] bounds;
+            private final int from;
+            private final int to;
+            private final SegmentReader reader;
+            // Leaf tasks store the values read from part i at index i
+            private final Object [] parts;
+
+            public ReadTask (FileChannel file, long [] bounds, int from,
+                             int to, SegmentReader reader, Object [] parts) {
+                this.file = file;
+                this.bounds = bounds;
+                this.from = from;
+                this.to = to;
+                this.reader = reader;
+                this.parts = parts;
+            }
+
+            protected void compute () {
+                if (to - from == 1) {
+                    parts [from] = reader.read
+                        (new GenericScanner
+                         (new MappedTokenizer (file, Charset.defaultCharset (),
+                                               bounds [from], bounds [to]),
+                          false));
+                } else {
+                    int middle = (from + to) >>> 1;
+                    invokeAll (new ReadTask (file, bounds, from, middle,
+                                             reader, parts),
+                               new ReadTask (file, bounds, middle, to,
+                                             reader, parts));
+                }
+            }
+        }
+
+        // Parts of a file to be read in parallel are at least this big
+        private static final long MIN_SEGMENT_SIZE = 1 << 20;
+
+        private Boolean readByLines = true;
+        private Scanner internalScanner;
+        // Set when lines or tokens are being read on a background thread
+        private ReadAhead readAhead;
+        // With read-ahead by lines, what is left of a line which tokens have
+        // been taken from, or null
+        private String lineRest;
+        // A timed prompt's wait for input, on another thread, which the
+        // input mustn't be used around until it has finished
+        private FutureTask <Boolean> waiting;
+        // Set instead of internalScanner when reading bytes directly
+        private ByteTokenizer byteInput;
+        private final LineTokenizer lineTokenizer = new LineTokenizer ();
+
+        public GenericScanner () {
+            this (new Scanner (System.in));
+        }
+        public GenericScanner (Scanner scanner) {
+            internalScanner = scanner;
         }
         public GenericScanner (Boolean readByLines) {
             this ();
@@ -270,82 +2263,896 @@ public class Utilities {
             this.readByLines = readByLines;
         }
 
+        /**
+         * Make a scanner which reads bytes straight from a channel, such as a
+         * FileChannel, rather than through a Scanner
+         *
+         * Numbers made of plain ASCII are parsed straight from the bytes;
+         * anything else is read as a Scanner in the default locale would
+         * read it. Text is decoded with the default charset.
+         *
+         * @param channel the channel to read from
+         * @param readByLines whether each value is on its own line
+         */
+        public GenericScanner (ReadableByteChannel channel,
+                               boolean readByLines) {
+            this (new ByteTokenizer (channel, Charset.defaultCharset ()),
+                  readByLines);
+        }
+
+        private GenericScanner (ByteTokenizer byteInput,
+                                boolean readByLines) {
+            this.byteInput = byteInput;
+            this.readByLines = readByLines;
+        }
+        public GenericScanner (ReadableByteChannel channel) {
+            this (channel, true);
+        }
+
+        /**
+         * Make a scanner which reads a file through memory-mapped windows of
+         * it
+         *
+         * This is like reading from the file's channel, except that tokens
+         * and lines are read straight from the mapped pages, with no copying
+         * or decoding for numbers, and files can be bigger than 2 GB.
+         *
+         * @param path the file to read
+         * @param readByLines whether each value is on its own line
+         * @throws IOException if the file can't be opened
+         */
+        public GenericScanner (Path path, boolean readByLines)
+            throws IOException {
+            FileChannel file = FileChannel.open (path,
+                                                 StandardOpenOption.READ);
+            try {
+                byteInput = new MappedTokenizer (file,
+                                                 Charset.defaultCharset ());
+            } catch (IOException e) {
+                file.close ();
+                throw e;
+            }
+            this.readByLines = readByLines;
+        }
+        public GenericScanner (Path path) throws IOException {
+            this (path, true);
+        }
+
+        /**
+         * Read every token in a file as an int, spreading the work over a
+         * ForkJoinPool
+         *
+         * The file is split into parts at line boundaries, each part is
+         * read from a mapping of it as a memory-mapped scanner would read
+         * it, and the values are joined back together in their original
+         * order.
+         *
+         * @param path the file to read
+         * @param pool the pool on which to read the parts
+         * @return the ints in the file, in order
+         * @throws IOException if the file can't be read
+         * @throws InputMismatchException if a token isn't an int
+         */
+        public static int [] readAllInts (Path path, ForkJoinPool pool)
+            throws IOException {
+            return ((int []) readAll
+                    (path, pool, new SegmentReader (int.class) {
+                        Object read (GenericScanner scanner) {
+                            int [] values = new int [1024];
+                            int count = 0;
+                            while (scanner.hasNext ()) {
+                                if (count == values.length) {
+                                    values = Arrays.copyOf (values,
+                                                            count * 2);
+                                }
+                                values [count++] = scanner.nextInt ();
+                            }
+                            return (Arrays.copyOf (values, count));
+                        }
+                    }));
+        }
+        public static int [] readAllInts (Path path) throws IOException {
+            return (readAllInts (path, ForkJoinPool.commonPool ()));
+        }
+
+        /**
+         * Read every token in a file as a long, spreading the work over a
+         * ForkJoinPool; see readAllInts
+         *
+         * @param path the file to read
+         * @param pool the pool on which to read the parts
+         * @return the longs in the file, in order
+         * @throws IOException if the file can't be read
+         * @throws InputMismatchException if a token isn't a long
+         */
+        public static long [] readAllLongs (Path path, ForkJoinPool pool)
+            throws IOException {
+            return ((long []) readAll
+                    (path, pool, new SegmentReader (long.class) {
+                        Object read (GenericScanner scanner) {
+                            long [] values = new long [1024];
+                            int count = 0;
+                            while (scanner.hasNext ()) {
+                                if (count == values.length) {
+                                    values = Arrays.copyOf (values,
+                                                            count * 2);
+                                }
+                                values [count++] = scanner.nextLong ();
+                            }
+                            return (Arrays.copyOf (values, count));
+                        }
+                    }));
+        }
+        public static long [] readAllLongs (Path path) throws IOException {
+            return (readAllLongs (path, ForkJoinPool.commonPool ()));
+        }
+
+        /**
+         * Read every token in a file as a double, spreading the work over a
+         * ForkJoinPool; see readAllInts
+         *
+         * @param path the file to read
+         * @param pool the pool on which to read the parts
+         * @return the doubles in the file, in order
+         * @throws IOException if the file can't be read
+         * @throws InputMismatchException if a token isn't a double
+         */
+        public static double [] readAllDoubles (Path path, ForkJoinPool pool)
+            throws IOException {
+            return ((double []) readAll
+                    (path, pool, new SegmentReader (double.class) {
+                        Object read (GenericScanner scanner) {
+                            double [] values = new double [1024];
+                            int count = 0;
+                            while (scanner.hasNext ()) {
+                                if (count == values.length) {
+                                    values = Arrays.copyOf (values,
+                                                            count * 2);
+                                }
+                                values [count++] = scanner.nextDouble ();
+                            }
+                            return (Arrays.copyOf (values, count));
+                        }
+                    }));
+        }
+        public static double [] readAllDoubles (Path path)
+            throws IOException {
+            return (readAllDoubles (path, ForkJoinPool.commonPool ()));
+        }
+
+        /**
+         * Read every token in a file as some type, spreading the work over a
+         * ForkJoinPool; see readAllInts
+         *
+         * @param path the file to read
+         * @param type the type of value to read
+         * @param pool the pool on which to read the parts
+         * @return the values in the file, in order
+         * @throws IOException if the file can't be read
+         * @throws InputMismatchException if a token can't be read as a type
+         */
+        public static <T> List <T> readAll (Path path, final Class <T> type,
+                                            ForkJoinPool pool)
+            throws IOException {
+            Object values = readAll
+                (path, pool, new SegmentReader (type) {
+                    Object read (GenericScanner scanner) {
+                        ArrayList <T> part = new ArrayList <T> ();
+                        while (scanner.hasNext ()) {
+                            part.add (scanner.next (type));
+                        }
+                        return (part.toArray ());
+                    }
+                });
+            // The array was made with type as its component type
+            @SuppressWarnings ("unchecked")
+                T [] typed = (T []) values;
+            return (Arrays.asList (typed));
+        }
+        public static <T> List <T> readAll (Path path, Class <T> type)
+            throws IOException {
+            return (readAll (path, type, ForkJoinPool.commonPool ()));
+        }
+
+        // Read the parts of a file in parallel, and join the arrays read
+        private static Object readAll (Path path, ForkJoinPool pool,
+                                       SegmentReader reader)
+            throws IOException {
+            FileChannel file = FileChannel.open (path,
+                                                 StandardOpenOption.READ);
+            try {
+                long size = file.size ();
+                int partCount = (int) Math.min
+                    (pool.getParallelism () * 4L,
+                     Math.max (1, size / MIN_SEGMENT_SIZE));
+                long [] bounds = splitLines (file, size, partCount);
+                Object [] parts = new Object [bounds.length - 1];
+                pool.invoke (new ReadTask (file, bounds, 0, parts.length,
+                                           reader, parts));
+
+                long total = 0;
+                for (Object part : parts) {
+                    total += Array.getLength (part);
+                }
+                Object values = Array.newInstance (reader.componentType,
+                                                   Math.toIntExact (total));
+                int position = 0;
+                for (Object part : parts) {
+                    int length = Array.getLength (part);
+                    System.arraycopy (part, 0, values, position, length);
+                    position += length;
+                }
+                return (values);
+            } finally {
+                file.close ();
+            }
+        }
+
+        // Find where to split a file into about partCount parts, each but
+        // the last ending just after a '\n'
+        private static long [] splitLines (FileChannel file, long size,
+                                           int partCount)
+            throws IOException {
+            long [] bounds = new long [partCount + 1];
+            int count = 1;
+            ByteBuffer probe = ByteBuffer.allocate (4096);
+            for (int i = 1; i < partCount; i++) {
+                long bound = Math.max (size / partCount * i,
+                                       bounds [count - 1] + 1);
+                // Look for the end of the line which bound - 1 is in
+                long position = bound - 1;
+                bound = size;
+                search: while (position < size) {
+                    probe.clear ();
+                    int read = file.read (probe, position);
+                    if (read <= 0) {
+                        break;
+                    }
+                    for (int j = 0; j < read; j++) {
+                        if (probe.get (j) == '\n') {
+                            bound = position + j + 1;
+                            break search;
+                        }
+                    }
+                    position += read;
+                }
+                if (bound >= size) {
+                    break;
+                }
+                bounds [count++] = bound;
+            }
+            bounds [count++] = size;
+            return (Arrays.copyOf (bounds, count));
+        }
+
+        /**
+         * Make a scanner which reads bytes straight from standard input
+         *
+         * Nothing else should read System.in while this scanner is in use,
+         * since either one may read ahead of what it hands out.
+         *
+         * @param readByLines whether each value is on its own line
+         * @return a scanner reading standard input
+         */
+        public static GenericScanner fastStdin (boolean readByLines) {
+            return (new GenericScanner
+                    (new FileInputStream (FileDescriptor.in).getChannel (),
+                     readByLines));
+        }
+
+        /**
+         * Find out whether there is anything more to read, waiting for input
+         * if need be
+         *
+         * This looks for another line if this scanner reads by lines, and
+         * another token otherwise; it doesn't check that what is there can
+         * be parsed.
+         *
+         * @return false if the input has ended
+         */
+        public boolean hasNext () {
+            if (readAhead != null) {
+                return (lineRest != null || readAhead.hasNext ());
+            }
+            settle ();
+            return (hasNextInput ());
+        }
+
+        // Whether there is more input, found out from the input itself
+        private boolean hasNextInput () {
+            if (byteInput != null) {
+                return (readByLines ?
+                        byteInput.hasNextLine () : byteInput.hasNextToken ());
+            }
+            return (readByLines ? internalScanner.hasNextLine () :
+                    internalScanner.hasNext ());
+        }
+
+        /**
+         * Turn strict mode on or off
+         *
+         * In strict mode, numbers and booleans are read by this class's own
+         * parsers and never by a Scanner, so the default locale doesn't
+         * matter. A number must be plain ASCII: a sign, digits, and for a
+         * decimal a fraction after a '.' and an exponent after an 'e', with
+         * no grouping separators. Anything else is an
+         * InputMismatchException, or an invalid entry to tryNext and the
+         * prompts. Integers which overflow their type are rejected, and
+         * decimals are rounded correctly. Only Strings, Booleans, the
+         * numeric wrapper types, BigIntegers and BigDecimals can be read,
+         * without arguments.
+         *
+         * @param strict whether to read in strict mode
+         */
+        public void setStrict (boolean strict) {
+            lineTokenizer.strict = strict;
+        }
+
+        /**
+         * @return whether this scanner reads in strict mode
+         */
+        public boolean isStrict () {
+            return (lineTokenizer.strict);
+        }
+
+        // Make sure strict mode can read a type before reading anything
+        private void checkStrict (Class <?> type, Object [] args) {
+            if (lineTokenizer.strict &&
+                (args.length != 0 || !(LineTokenizer.isStrictType (type)))) {
+                throw new IllegalArgumentException
+                    (String.format ("Can't read %s in strict mode.",
+                                    type.getName ()));
+            }
+        }
+
         public <T> T next (Class <T> returnType, Object... args) {
-            T typedResult;
+            Object result = null;
             if (returnType == String.class) {
                 if (readByLines) {
-                    @SuppressWarnings ("unchecked")
-                        T casted = (T) internalScanner.nextLine ();
-                    typedResult = casted;
+                    result = nextLine ();
+                } else if (scannerTokens ()) {
+                    result = internalScanner.next ();
                 } else {
-                    @SuppressWarnings ("unchecked")
-                        T casted = (T) internalScanner.next ();
-                    typedResult = casted;
+                    result = nextToken ().toString ();
                 }
             } else {
-                Method method;
-                Class <?> actualType;
-                try {
-                    actualType =
-                        (Class <?>) returnType.getField ("TYPE").get (null);
-                } catch (NoSuchFieldException|ClassCastException e) {
-                    actualType = returnType;
-                } catch (IllegalAccessException e) {
-                    throw new RuntimeException (e);
+                checkStrict (returnType, args);
+                MethodHandle parser = PARSERS.get (returnType).get (args);
+                if (scannerTokens ()) {
+                    result = invoke (parser, internalScanner, args);
+                } else {
+                    CharSequence text = nextText ();
+                    if (args.length == 0) {
+                        result = lineTokenizer.parse (text, returnType);
+                    }
+                    if (result == null) {
+                        if (lineTokenizer.strict) {
+                            throw new InputMismatchException
+                                (text.toString ());
+                        }
+                        result = scan (parser, text, args);
+                    }
                 }
+            }
 
-                try {
-                    method = internalScanner.getClass ()
-                        .getDeclaredMethod ("next" + capFirst
-                                            (actualType.getName ()
-                                             .replaceAll
-                                             ("^([^\\.]*\\.)*([^\\.]*)$",
-                                              "$2")),
-                                            getClasses (args));
-                } catch (NoSuchMethodException e) {
-                    throw new RuntimeException (e);
+            return (cast (returnType, result));
+        }
+
+        /**
+         * Read a value, without throwing an exception if it is invalid
+         *
+         * The line (or token) is used up whether or not it is valid. Unlike
+         * next, a blank line is simply invalid.
+         *
+         * @param returnType the type of value to read
+         * @param args the arguments to the Scanner method which reads it
+         * @return the value read, or an empty Optional if it was invalid
+         * @throws NoSuchElementException if there is no input left
+         */
+        public <T> Optional <T> tryNext (Class <T> returnType,
+                                         Object... args) {
+            Object result;
+            if (returnType == String.class) {
+                result = next (returnType, args);
+            } else if (lineTokenizer.strict) {
+                checkStrict (returnType, args);
+                result = lineTokenizer.parse (nextText (), returnType);
+                if (result == null) {
+                    return (Optional.empty ());
+                }
+            } else if (scannerTokens ()) {
+                if (!((Boolean) invoke (CHECKERS.get (returnType).get (args),
+                                        internalScanner, args))) {
+                    // Throw away the bad token so we don't read it again
+                    internalScanner.next ();
+                    return (Optional.empty ());
                 }
+                result = invoke (PARSERS.get (returnType).get (args),
+                                 internalScanner, args);
+            } else {
+                CharSequence text = nextText ();
+                // The tokenizer doesn't take arguments, and its rejected flag
+                // is left over from the last token if it doesn't run
+                boolean parsed = (args.length == 0);
+                result = parsed ? lineTokenizer.parse (text, returnType) : null;
+                if (result == null) {
+                    if ((parsed && lineTokenizer.rejected) ||
+                        lineTokenizer.strict) {
+                        return (Optional.empty ());
+                    }
+                    result = tryScan (returnType, text, args);
+                    if (result == null) {
+                        return (Optional.empty ());
+                    }
+                }
+            }
+            return (Optional.of (cast (returnType, result)));
+        }
 
-                try {
-                    Object result;
+        private static <T> T cast (Class <T> returnType, Object result) {
+            if (returnType.isInstance (result)) {
+                @SuppressWarnings ("unchecked")
+                    T casted = (T) result;
+                return (casted);
+            } else {
+                throw new Error (String.format
+                                 ("Wrong return type %s for %s.",
+                                  result.getClass ().getName (),
+                                  returnType.getName ()));
+            }
+        }
 
-                    if (readByLines) {
-                        Scanner tempScanner =
-                            new Scanner (internalScanner.nextLine ());
-                        try {
-                            result = method.invoke (tempScanner, args);
-                            tempScanner.close ();
-                        } catch (Exception e) {
-                            tempScanner.close ();
-                            throw e;
+        /**
+         * Read an int without boxing it
+         *
+         * @return the int read
+         */
+        public int nextInt () {
+            if (scannerTokens ()) {
+                return (internalScanner.nextInt ());
+            }
+            return ((int) nextLongValue (nextText (), Integer.class,
+                                         Integer.MIN_VALUE,
+                                         Integer.MAX_VALUE));
+        }
+
+        /**
+         * Read a long without boxing it
+         *
+         * @return the long read
+         */
+        public long nextLong () {
+            if (scannerTokens ()) {
+                return (internalScanner.nextLong ());
+            }
+            return (nextLongValue (nextText (), Long.class, Long.MIN_VALUE,
+                                   Long.MAX_VALUE));
+        }
+
+        /**
+         * Read a double without boxing it
+         *
+         * @return the double read
+         */
+        public double nextDouble () {
+            if (scannerTokens ()) {
+                return (internalScanner.nextDouble ());
+            }
+            return (nextDoubleValue (nextText ()));
+        }
+
+        /**
+         * Read a number of ints, however they are split up between lines
+         *
+         * @param n the number of ints to read
+         * @return the ints read
+         */
+        public int [] nextIntArray (int n) {
+            int [] values = new int [n];
+            for (int i = 0; i < n; i++) {
+                if (scannerNumbers ()) {
+                    values [i] = internalScanner.nextInt ();
+                } else {
+                    values [i] = (int) nextLongValue (nextToken (),
+                                                      Integer.class,
+                                                      Integer.MIN_VALUE,
+                                                      Integer.MAX_VALUE);
+                }
+            }
+            return (values);
+        }
+
+        /**
+         * Read a number of longs, however they are split up between lines
+         *
+         * @param n the number of longs to read
+         * @return the longs read
+         */
+        public long [] nextLongArray (int n) {
+            long [] values = new long [n];
+            for (int i = 0; i < n; i++) {
+                if (scannerNumbers ()) {
+                    values [i] = internalScanner.nextLong ();
+                } else {
+                    values [i] = nextLongValue (nextToken (), Long.class,
+                                                Long.MIN_VALUE,
+                                                Long.MAX_VALUE);
+                }
+            }
+            return (values);
+        }
+
+        /**
+         * Read a number of doubles, however they are split up between lines
+         *
+         * @param n the number of doubles to read
+         * @return the doubles read
+         */
+        public double [] nextDoubleArray (int n) {
+            double [] values = new double [n];
+            for (int i = 0; i < n; i++) {
+                if (scannerNumbers ()) {
+                    values [i] = internalScanner.nextDouble ();
+                } else {
+                    values [i] = nextDoubleValue (nextToken ());
+                }
+            }
+            return (values);
+        }
+
+        /**
+         * Make a stream of the values left in the input, read as they are
+         * needed
+         *
+         * The stream is ordered, and ends with the input. Its spliterator
+         * splits off batches of values already read, so the rest of a
+         * parallel pipeline can run in parallel even though reading can't.
+         * Nothing else should read from this scanner while the stream is in
+         * use.
+         *
+         * @param type the type of value to read
+         * @param args the arguments to the Scanner method which reads the
+         * value
+         * @return a stream of the values read
+         * @throws InputMismatchException (from the stream) if a line or
+         * token can't be read as a type
+         */
+        public <T> Stream <T> stream (final Class <T> type,
+                                      final Object... args) {
+            return (StreamSupport.stream
+                    (new Spliterators.AbstractSpliterator <T>
+                     (Long.MAX_VALUE, STREAM_CHARACTERISTICS) {
+                        public boolean tryAdvance (Consumer <? super T>
+                                                   action) {
+                            if (!(hasNext ())) {
+                                return (false);
+                            }
+                            action.accept (next (type, args));
+                            return (true);
                         }
-                    } else {
-                        result = method.invoke (internalScanner, args);
-                    }
+                    }, false));
+        }
 
-                    if (returnType.isInstance (result)) {
-                        @SuppressWarnings ("unchecked")
-                            T casted = (T) result;
-                        typedResult = casted;
-                    } else {
-                        throw new Error (String.format
-                                         ("Wrong return type %s for %s.",
-                                          result.getClass ().getName (),
-                                          returnType.getName ()));
-                    }
-                } catch (InvocationTargetException e) {
-                    Throwable cause = e.getCause ();
-                    if (cause instanceof InputMismatchException) {
-                        throw (InputMismatchException) cause;
-                    } else {
-                        throw new RuntimeException (cause);
-                    }
-                } catch (IllegalAccessException e) {
-                    throw new RuntimeException (e);
+        /**
+         * Make a stream of the ints left in the input, read as they are
+         * needed; see stream
+         *
+         * @return a stream of the ints read
+         */
+        public IntStream intStream () {
+            return (StreamSupport.intStream
+                    (new Spliterators.AbstractIntSpliterator
+                     (Long.MAX_VALUE, STREAM_CHARACTERISTICS) {
+                        public boolean tryAdvance (IntConsumer action) {
+                            if (!(hasNext ())) {
+                                return (false);
+                            }
+                            action.accept (nextInt ());
+                            return (true);
+                        }
+                    }, false));
+        }
+
+        /**
+         * Make a stream of the longs left in the input, read as they are
+         * needed; see stream
+         *
+         * @return a stream of the longs read
+         */
+        public LongStream longStream () {
+            return (StreamSupport.longStream
+                    (new Spliterators.AbstractLongSpliterator
+                     (Long.MAX_VALUE, STREAM_CHARACTERISTICS) {
+                        public boolean tryAdvance (LongConsumer action) {
+                            if (!(hasNext ())) {
+                                return (false);
+                            }
+                            action.accept (nextLong ());
+                            return (true);
+                        }
+                    }, false));
+        }
+
+        /**
+         * Make a stream of the doubles left in the input, read as they are
+         * needed; see stream
+         *
+         * @return a stream of the doubles read
+         */
+        public DoubleStream doubleStream () {
+            return (StreamSupport.doubleStream
+                    (new Spliterators.AbstractDoubleSpliterator
+                     (Long.MAX_VALUE, STREAM_CHARACTERISTICS) {
+                        public boolean tryAdvance (DoubleConsumer action) {
+                            if (!(hasNext ())) {
+                                return (false);
+                            }
+                            action.accept (nextDouble ());
+                            return (true);
+                        }
+                    }, false));
+        }
+
+        private static final int STREAM_CHARACTERISTICS =
+            Spliterator.ORDERED | Spliterator.NONNULL;
+
+        private static final Object [] NO_ARGS = new Object [0];
+
+        private long nextLongValue (CharSequence text,
+                                    Class <? extends Number> type, long min,
+                                    long max) {
+            if (lineTokenizer.readLong (text, min, max)) {
+                return (lineTokenizer.longValue);
+            } else if (lineTokenizer.strict) {
+                throw new InputMismatchException (text.toString ());
+            }
+            return (((Number) scan (PARSERS.get (type).get (NO_ARGS), text,
+                                    NO_ARGS)).longValue ());
+        }
+
+        private double nextDoubleValue (CharSequence text) {
+            if (lineTokenizer.readDouble (text)) {
+                return (lineTokenizer.doubleValue);
+            } else if (lineTokenizer.strict) {
+                throw new InputMismatchException (text.toString ());
+            }
+            return ((Double) scan (PARSERS.get (Double.class).get (NO_ARGS),
+                                   text, NO_ARGS));
+        }
+
+        // Whether to read tokens with the Scanner's own methods
+        private boolean scannerTokens () {
+            return (!readByLines && scannerNumbers ());
+        }
+
+        // Whether to read the values for the array methods with the
+        // Scanner's own methods
+        private boolean scannerNumbers () {
+            settle ();
+            return (byteInput == null && readAhead == null &&
+                    !(lineTokenizer.strict));
+        }
+
+        private String nextLine () {
+            settle ();
+            if (readAhead != null) {
+                return (takeLine ());
+            }
+            return ((byteInput == null) ?
+                    internalScanner.nextLine () : byteInput.nextLine ());
+        }
+
+        // The next token, when not reading values with the Scanner's own
+        // methods
+        private CharSequence nextToken () {
+            settle ();
+            if (readAhead != null) {
+                return (readByLines ? takeToken () : readAhead.take ());
+            } else if (byteInput == null) {
+                return (internalScanner.next ());
+            }
+            return (byteInput.nextToken ());
+        }
+
+        // The next line or token, depending on readByLines
+        private CharSequence nextText () {
+            settle ();
+            if (readAhead != null) {
+                return (readByLines ? takeLine () : readAhead.take ());
+            } else if (byteInput == null) {
+                return (readByLines ? internalScanner.nextLine () :
+                        internalScanner.next ());
+            }
+            return (readByLines ?
+                    byteInput.nextLineView () : byteInput.nextToken ());
+        }
+
+        // Wait for something to read, but no longer than a given time, without
+        // reading it. If the time runs out, the wait goes on in the
+        // background.
+        private boolean awaitInput (long nanos) {
+            if (readAhead != null) {
+                return (lineRest != null || readAhead.await (nanos));
+            } else if (waiting == null) {
+                waiting = new FutureTask <Boolean> (new Callable <Boolean> () {
+                        public Boolean call () {
+                            return (hasNextInput ());
+                        }
+                    });
+                Background.THREADS.newThread (waiting).start ();
+            }
+            return (settle (nanos));
+        }
+
+        private void settle () {
+            settle (Long.MAX_VALUE);
+        }
+
+        // Wait up to a given time for a timed prompt's wait for input to
+        // finish, returning false if it hasn't
+        private boolean settle (long nanos) {
+            if (waiting == null) {
+                return (true);
+            }
+            try {
+                waiting.get (nanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                return (false);
+            } catch (ExecutionException e) {
+                // Whatever went wrong goes wrong again on the next read
+            } catch (InterruptedException e) {
+                Thread.currentThread ().interrupt ();
+                throw new RuntimeException (e);
+            }
+            waiting = null;
+            return (true);
+        }
+
+        // Take the rest of the current line from the read-ahead queue
+        private String takeLine () {
+            String line = lineRest;
+            if (line == null) {
+                return (readAhead.take ());
+            }
+            lineRest = null;
+            return (line);
+        }
+
+        // Split the next token off the lines in the read-ahead queue, keeping
+        // the rest of its line for the next read, as a Scanner would
+        private String takeToken () {
+            while (true) {
+                String line = (lineRest == null) ? readAhead.take () : lineRest;
+                int length = line.length ();
+                int start = 0;
+                while (start < length &&
+                       Character.isWhitespace (line.charAt (start))) {
+                    start++;
+                }
+                if (start == length) {
+                    lineRest = null;
+                    continue;
+                }
+                int end = start;
+                while (end < length &&
+                       !(Character.isWhitespace (line.charAt (end)))) {
+                    end++;
+                }
+                lineRest = line.substring (end);
+                return (line.substring (start, end));
+            }
+        }
+
+        // Read the next line or token straight from the input, bypassing any
+        // read-ahead
+        private String readRaw () {
+            if (byteInput != null) {
+                return (readByLines ? byteInput.nextLine () :
+                        byteInput.nextToken ().toString ());
+            }
+            return (readByLines ?
+                    internalScanner.nextLine () : internalScanner.next ());
+        }
+
+        // Read text with a parser the way a new Scanner on it would
+        private static Object scan (MethodHandle parser, CharSequence text,
+                                    Object [] args) {
+            Scanner tempScanner = new Scanner (text.toString ());
+            try {
+                return (invoke (parser, tempScanner, args));
+            } finally {
+                tempScanner.close ();
+            }
+        }
+
+        // Read text the way a new Scanner on it would, or return null if the
+        // Scanner says it isn't valid
+        private static Object tryScan (Class <?> type, CharSequence text,
+                                       Object [] args) {
+            Scanner tempScanner = new Scanner (text.toString ());
+            try {
+                if (!((Boolean) invoke (CHECKERS.get (type).get (args),
+                                        tempScanner, args))) {
+                    return (null);
+                }
+                return (invoke (PARSERS.get (type).get (args), tempScanner,
+                                args));
+            } finally {
+                tempScanner.close ();
+            }
+        }
+
+        // Read a long into longResult, returning false instead of throwing if
+        // it is invalid
+        private boolean tryNextLong (Class <? extends Number> type, long min,
+                                     long max) {
+            if (scannerTokens ()) {
+                boolean isInt = (type == Integer.class);
+                if (isInt ? internalScanner.hasNextInt () :
+                    internalScanner.hasNextLong ()) {
+                    longResult = isInt ? internalScanner.nextInt () :
+                        internalScanner.nextLong ();
+                    return (true);
+                }
+                internalScanner.next ();
+                return (false);
+            }
+
+            CharSequence text = nextText ();
+            if (lineTokenizer.readLong (text, min, max)) {
+                longResult = lineTokenizer.longValue;
+                return (true);
+            } else if (lineTokenizer.rejected || lineTokenizer.strict) {
+                return (false);
+            }
+            Object value = tryScan (type, text, NO_ARGS);
+            if (value == null) {
+                return (false);
+            }
+            longResult = ((Number) value).longValue ();
+            return (true);
+        }
+
+        // Read a double into doubleResult, returning false instead of throwing
+        // if it is invalid
+        private boolean tryNextDouble () {
+            if (scannerTokens ()) {
+                if (internalScanner.hasNextDouble ()) {
+                    doubleResult = internalScanner.nextDouble ();
+                    return (true);
                 }
+                internalScanner.next ();
+                return (false);
             }
 
-            return (typedResult);
+            CharSequence text = nextText ();
+            if (lineTokenizer.readDouble (text)) {
+                doubleResult = lineTokenizer.doubleValue;
+                return (true);
+            } else if (lineTokenizer.strict) {
+                return (false);
+            }
+            Object value = tryScan (Double.class, text, NO_ARGS);
+            if (value == null) {
+                return (false);
+            }
+            doubleResult = (Double) value;
+            return (true);
+        }
+
+        // The values read by tryNextLong and tryNextDouble
+        private long longResult;
+        private double doubleResult;
+
+        private static Object invoke (MethodHandle parser, Scanner scanner,
+                                      Object [] args) {
+            try {
+                return ((Object) parser.invokeExact (scanner, args));
+            } catch (InputMismatchException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException (e);
+            }
         }
 
         public <R, T> R prompt (Class <T> inputType, String prompt,
@@ -353,19 +3160,24 @@ public class Utilities {
                                 UnaryFunction <R, T> getResult,
                                 Object... args) {
             for (; verificationCount != 0; verificationCount--) {
-                System.out.print (prompt + ": ");
-                R returnValue;
+                printPrompt (prompt);
+                R returnValue =
+                    accept (this.<T> tryNext (inputType, args), getResult);
+                if (returnValue != null) {
+                    return (returnValue);
+                }
+                invalid ();
+            }
+            return (null);
+        }
+
+        // Turn what was entered into a result, or null if it is invalid
+        private static <R, T> R accept (Optional <T> value,
+                                        UnaryFunction <R, T> getResult) {
+            if (value.isPresent ()) {
                 try {
-                    returnValue =
-                        getResult.call (this.<T> next (inputType, args));
-                    if (returnValue == null) {
-                        invalid ();
-                    } else {
-                        return (returnValue);
-                    }
-                } catch (InputMismatchException e) {
-                    invalid ();
-                }
+                    return (getResult.call (value.get ()));
+                } catch (InputMismatchException e) {}
             }
             return (null);
         }
@@ -393,8 +3205,276 @@ public class Utilities {
             return
                 (this.<T> prompt (inputType, prompt, -1, args));
         }
+        /**
+         * The result of a prompt with a time limit
+         */
+        public static final class PromptResult <R> {
+            private final R value;
+            private final boolean timedOut;
+            private final long waitNanos;
+
+            PromptResult (R value, boolean timedOut, long waitNanos) {
+                this.value = value;
+                this.timedOut = timedOut;
+                this.waitNanos = waitNanos;
+            }
+
+            /**
+             * @return the result of the prompt, or null if it timed out or no
+             * entry was valid
+             */
+            public R getValue () {
+                return (value);
+            }
+
+            /**
+             * @return whether time ran out before a valid entry was made
+             */
+            public boolean isTimedOut () {
+                return (timedOut);
+            }
+
+            /**
+             * @return how long the prompt spent waiting for input, in total
+             * over all tries
+             */
+            public Duration getWaitTime () {
+                return (Duration.ofNanos (waitNanos));
+            }
+        }
+
+        /**
+         * Prompt for a value, giving up once a time limit has passed
+         *
+         * Input is waited for on another thread but read on this one as
+         * usual, so nothing else reads differently afterwards. If the time
+         * runs out, the other thread goes on waiting for the next line or
+         * token, without reading it, and the next read waits for it; with
+         * read-ahead started, the queue is waited on instead. The time limit
+         * covers all of the tries together.
+         *
+         * @param inputType the type of value to read
+         * @param prompt the prompt to show
+         * @param timeout how long to wait for a valid entry
+         * @param verificationCount the number of tries allowed, or -1 for no
+         * limit
+         * @param getResult turns the value read into the result, returning
+         * null if it isn't acceptable
+         * @param args the arguments to the Scanner method which reads the
+         * value
+         * @return the result, or a timed out result
+         */
+        public <R, T> PromptResult <R> promptWithin (Class <T> inputType,
+                                                     String prompt,
+                                                     Duration timeout,
+                                                     int verificationCount,
+                                                     UnaryFunction <R, T>
+                                                     getResult,
+                                                     Object... args) {
+            long deadline = System.nanoTime () + timeout.toNanos ();
+            long waited = 0;
+            for (int tries = verificationCount; tries != 0; tries--) {
+                printPrompt (prompt);
+                long before = System.nanoTime ();
+                boolean ready = awaitInput (deadline - before);
+                waited += System.nanoTime () - before;
+                if (!ready) {
+                    // End the prompt's line, since nobody did
+                    System.out.println ();
+                    return (new PromptResult <R> (null, true, waited));
+                }
+
+                R returnValue =
+                    accept (this.<T> tryNext (inputType, args), getResult);
+                if (returnValue != null) {
+                    return (new PromptResult <R> (returnValue, false, waited));
+                }
+                invalid ();
+            }
+            return (new PromptResult <R> (null, false, waited));
+        }
+
+        public <T> PromptResult <T> promptWithin (Class <T> inputType,
+                                                  String prompt,
+                                                  Duration timeout,
+                                                  int verificationCount,
+                                                  Object... args) {
+            return (this.<T, T> promptWithin (inputType, prompt, timeout,
+                                              verificationCount,
+                                              new UnaryFunction <T, T> () {
+                                                  public T call (T arg) {
+                                                      return (arg);
+                                                  }
+                                              }, args));
+        }
+
+        public <R, T> PromptResult <R> promptWithin (Class <T> inputType,
+                                                     String prompt,
+                                                     Duration timeout,
+                                                     UnaryFunction <R, T>
+                                                     getResult,
+                                                     Object... args) {
+            return (this.<R, T> promptWithin (inputType, prompt, timeout, -1,
+                                              getResult, args));
+        }
+
+        // Without varargs, since with them a count would match both this and
+        // the overload with a count; Scanner arguments need a count, then
+        public <T> PromptResult <T> promptWithin (Class <T> inputType,
+                                                  String prompt,
+                                                  Duration timeout) {
+            return (this.<T> promptWithin (inputType, prompt, timeout, -1));
+        }
+
+        /**
+         * Prompt for an int, without boxing it
+         *
+         * @param prompt the prompt to show
+         * @param verificationCount the number of tries allowed, or -1 for no
+         * limit
+         * @param validator decides whether an int is acceptable, or null to
+         * accept any int
+         * @param fallback the value to return if no try was acceptable
+         * @return the first acceptable int entered, or fallback
+         */
+        public int promptInt (String prompt, int verificationCount,
+                              IntPredicate validator, int fallback) {
+            for (; verificationCount != 0; verificationCount--) {
+                printPrompt (prompt);
+                if (tryNextLong (Integer.class, Integer.MIN_VALUE,
+                                 Integer.MAX_VALUE) &&
+                    (validator == null || validator.test ((int) longResult))) {
+                    return ((int) longResult);
+                }
+                invalid ();
+            }
+            return (fallback);
+        }
+        public int promptInt (String prompt, IntPredicate validator) {
+            return (promptInt (prompt, -1, validator, 0));
+        }
+
+        /**
+         * Prompt for a long, without boxing it
+         *
+         * @param prompt the prompt to show
+         * @param verificationCount the number of tries allowed, or -1 for no
+         * limit
+         * @param validator decides whether a long is acceptable, or null to
+         * accept any long
+         * @param fallback the value to return if no try was acceptable
+         * @return the first acceptable long entered, or fallback
+         */
+        public long promptLong (String prompt, int verificationCount,
+                                LongPredicate validator, long fallback) {
+            for (; verificationCount != 0; verificationCount--) {
+                printPrompt (prompt);
+                if (tryNextLong (Long.class, Long.MIN_VALUE, Long.MAX_VALUE) &&
+                    (validator == null || validator.test (longResult))) {
+                    return (longResult);
+                }
+                invalid ();
+            }
+            return (fallback);
+        }
+        public long promptLong (String prompt, LongPredicate validator) {
+            return (promptLong (prompt, -1, validator, 0));
+        }
+
+        /**
+         * Prompt for a double, without boxing it
+         *
+         * @param prompt the prompt to show
+         * @param verificationCount the number of tries allowed, or -1 for no
+         * limit
+         * @param validator decides whether a double is acceptable, or null to
+         * accept any double
+         * @param fallback the value to return if no try was acceptable
+         * @return the first acceptable double entered, or fallback
+         */
+        public double promptDouble (String prompt, int verificationCount,
+                                    DoublePredicate validator,
+                                    double fallback) {
+            for (; verificationCount != 0; verificationCount--) {
+                printPrompt (prompt);
+                if (tryNextDouble () &&
+                    (validator == null || validator.test (doubleResult))) {
+                    return (doubleResult);
+                }
+                invalid ();
+            }
+            return (fallback);
+        }
+        public double promptDouble (String prompt,
+                                    DoublePredicate validator) {
+            return (promptDouble (prompt, -1, validator, 0));
+        }
+
+        // The last prompt printed, and what to print for it if it is ASCII
+        private String lastPrompt;
+        private byte [] lastPromptBytes;
+
+        private void printPrompt (String prompt) {
+            // Prompts are usually the same string every time, so keep its
+            // bytes rather than encoding it on every print
+            if (prompt != lastPrompt) {
+                lastPrompt = prompt;
+                lastPromptBytes = null;
+                String text = prompt + ": ";
+                if (text.chars ().allMatch (new IntPredicate () {
+                        public boolean test (int chr) {
+                            return (chr < 0x80);
+                        }
+                    })) {
+                    lastPromptBytes =
+                        text.getBytes (StandardCharsets.US_ASCII);
+                }
+            }
+            if (lastPromptBytes != null) {
+                System.out.write (lastPromptBytes, 0, lastPromptBytes.length);
+            } else {
+                System.out.print (prompt + ": ");
+            }
+        }
+
+        /**
+         * Start reading input on a background thread
+         *
+         * From now on, a virtual thread (or a daemon thread on JVMs without
+         * them) reads lines, or tokens if this scanner doesn't read by lines,
+         * into a queue, and this scanner parses what it takes from the queue.
+         * Reading and parsing then overlap, which pays off for piped bulk
+         * input. Nothing else may read the underlying input after this.
+         *
+         * @param capacity the most lines or tokens to read ahead
+         */
+        public void startReadAhead (int capacity) {
+            if (readAhead == null) {
+                settle ();
+                readAhead = new ReadAhead (this, capacity);
+            }
+        }
+        public void startReadAhead () {
+            startReadAhead (1024);
+        }
+
         public void close () {
-            internalScanner.close ();
+            // As when read-ahead stops, a wait for input which doesn't end
+            // in time is left to end on its own
+            settle (TimeUnit.MILLISECONDS.toNanos (ReadAhead.STOP_TIMEOUT));
+            if (readAhead != null) {
+                readAhead.stopAndClose ();
+            } else {
+                closeInput ();
+            }
+        }
+
+        private void closeInput () {
+            if (byteInput == null) {
+                internalScanner.close ();
+            } else {
+                byteInput.close ();
+            }
         }
     }
 
@@ -415,42 +3495,722 @@ public class Utilities {
         }
     }
 
+    /**
+     * A menu action which opens a menu of its own
+     *
+     * The submenu's choices are only made when it is first opened, and are
+     * kept from then on, along with its text. Choosing it from mainLoop
+     * opens it in the same loop; once an action on it returns false, the
+     * loop goes back to the menu it was opened from (see backAction).
+     * Calling it anywhere else runs a loop of its own on its scanner.
+     */
+    public static abstract class SubMenuAction extends BasicMenuAction {
+        private HashMap <String, MenuAction> choices;
+        private final MenuText menu = new MenuText ();
+        private final GenericScanner kbdScanner;
+        private final ScreenRenderer screen;
+        private final boolean typeAhead;
+
+        public SubMenuAction (String name, GenericScanner kbdScanner) {
+            this (name, kbdScanner, null, false);
+        }
+
+        /**
+         * @param name the name of the submenu
+         * @param kbdScanner the scanner from which to read choices when the
+         * submenu is called outside mainLoop
+         * @param screen the renderer with which to draw the submenu then, or
+         * null to simply print it
+         * @param typeAhead whether a choice can be abbreviated then
+         */
+        public SubMenuAction (String name, GenericScanner kbdScanner,
+                              ScreenRenderer screen, boolean typeAhead) {
+            super (name);
+            this.kbdScanner = kbdScanner;
+            this.screen = screen;
+            this.typeAhead = typeAhead;
+        }
+
+        /**
+         * Make the submenu's choices, which is only done once
+         *
+         * @return the actions on the submenu, keyed by what to type for each
+         */
+        protected abstract HashMap <String, MenuAction> createChoices ();
+
+        /**
+         * @return the actions on the submenu, made the first time they are
+         * wanted
+         */
+        public HashMap <String, MenuAction> getChoices () {
+            if (choices == null) {
+                choices = createChoices ();
+            }
+            return (choices);
+        }
+
+        /**
+         * @return a function which prints the submenu's header, or null to
+         * keep the header of the menu it was opened from
+         */
+        public VoidFunction getHeader () {
+            return (null);
+        }
+
+        /**
+         * Run the submenu until an action on it returns false
+         *
+         * @return true, so that the menu it was called from carries on
+         */
+        public Boolean call () {
+            menuLoop (kbdScanner, getHeader (), getChoices (), null, menu,
+                      screen, typeAhead);
+            return (true);
+        }
+    }
+
+    /**
+     * A menu action which runs in the background, so that the menu can go
+     * on being used while it runs
+     *
+     * Each run gets a thread of its own, which is a virtual thread on JVMs
+     * which have them and a daemon thread otherwise. Its name says whether
+     * the last run is running, done, failed or cancelled, and choosing it
+     * while it runs does nothing; cancelAction gives a menu action which
+     * stops it, and finished can be overridden to hear about each run as it
+     * ends.
+     */
+    public static abstract class AsyncMenuAction <V> extends BasicMenuAction {
+        private FutureTask <V> task;
+
+        public AsyncMenuAction (String name) {
+            super (name);
+        }
+
+        /**
+         * Do the action's work, on a background thread
+         *
+         * The action is cancelled by interrupting the thread, so long
+         * actions should check for interrupts.
+         *
+         * @return the result of the action
+         * @throws Exception if the action fails, which its Future throws
+         * again
+         */
+        protected abstract V compute () throws Exception;
+
+        /**
+         * Start the action, unless it is running already
+         *
+         * @return the Future of the run which was started or is running
+         */
+        public synchronized Future <V> start () {
+            if (task == null || task.isDone ()) {
+                task = new FutureTask <V> (new Callable <V> () {
+                        public V call () throws Exception {
+                            return (compute ());
+                        }
+                    }) {
+                        protected void done () {
+                            final Future <V> run = this;
+                            if (!(isCancelled ())) {
+                                finished (run);
+                                return;
+                            }
+                            // This is the cancelling thread, which may well
+                            // be the menu's
+                            Background.THREADS.newThread (new Runnable () {
+                                    public void run () {
+                                        finished (run);
+                                    }
+                                }).start ();
+                        }
+                    };
+                Background.THREADS.newThread (task).start ();
+            }
+            return (task);
+        }
+
+        /**
+         * @return the Future of the last run, or null if there hasn't been
+         * one
+         */
+        public synchronized Future <V> getFuture () {
+            return (task);
+        }
+
+        /**
+         * @return whether the action is running
+         */
+        public synchronized boolean isRunning () {
+            return (task != null && !(task.isDone ()));
+        }
+
+        /**
+         * Stop the action if it is running, by interrupting it
+         *
+         * @return whether a run was cancelled
+         */
+        public synchronized boolean cancel () {
+            return (task != null && task.cancel (true));
+        }
+
+        /**
+         * Hear that a run has ended, however it ended; this is called on the
+         * run's thread, or on a thread of its own if the run was cancelled,
+         * and does nothing unless overridden
+         *
+         * @param run the Future of the run, which is done
+         */
+        protected void finished (Future <V> run) {}
+
+        public String getName () {
+            Future <V> run = getFuture ();
+            if (run == null) {
+                return (name);
+            } else if (!(run.isDone ())) {
+                return (name + " (running)");
+            } else if (run.isCancelled ()) {
+                return (name + " (cancelled)");
+            }
+            try {
+                run.get ();
+                return (name + " (done)");
+            } catch (ExecutionException e) {
+                return (name + " (failed)");
+            } catch (InterruptedException e) {
+                // The run is done, so get doesn't wait to be interrupted
+                Thread.currentThread ().interrupt ();
+                return (name);
+            }
+        }
+
+        /**
+         * Start the action in the background
+         *
+         * @return true, so that the menu carries on
+         */
+        public Boolean call () {
+            start ();
+            return (Boolean.TRUE);
+        }
+
+        /**
+         * @return an action which cancels this one if it is running
+         */
+        public BasicMenuAction cancelAction () {
+            return (new BasicMenuAction ("cancel " + name) {
+                    public Boolean call () {
+                        cancel ();
+                        return (Boolean.TRUE);
+                    }
+                });
+        }
+    }
+
+    /**
+     * The text listing a menu's choices, rebuilt only when they change
+     *
+     * A snapshot of the keys, actions and names the text was built from is
+     * kept, and compared against the choices each time the text is wanted.
+     * That is much cheaper than formatting every line again.
+     */
+    private static final class MenuText {
+        private String [] keys = new String [0];
+        private MenuAction [] actions = new MenuAction [0];
+        private String [] names = new String [0];
+        private String text;
+        // Built from the snapshot when it is first wanted
+        private MenuIndex index;
+
+        /**
+         * @param choices the actions on the menu, keyed by what to type for
+         * each
+         * @return the text listing the choices, one per line
+         */
+        public String get (Map <String, MenuAction> choices) {
+            if (text == null || changed (choices)) {
+                rebuild (choices);
+            }
+            return (text);
+        }
+
+        private boolean changed (Map <String, MenuAction> choices) {
+            if (choices.size () != keys.length) {
+                return (true);
+            }
+            int i = 0;
+            for (Map.Entry <String, MenuAction> entry : choices.entrySet ()) {
+                MenuAction action = entry.getValue ();
+                if (!(entry.getKey ().equals (keys [i])) ||
+                    action != actions [i] ||
+                    !(action.getName ().equals (names [i]))) {
+                    return (true);
+                }
+                i++;
+            }
+            return (false);
+        }
+
+        /**
+         * @param choices the actions on the menu, chosen by number starting
+         * at 1
+         * @return the text listing the choices, one per line
+         */
+        public String get (MenuAction [] choices) {
+            if (text == null || changed (choices)) {
+                rebuild (choices);
+            }
+            return (text);
+        }
+
+        private boolean changed (MenuAction [] choices) {
+            if (choices.length != actions.length) {
+                return (true);
+            }
+            for (int i = 0; i < choices.length; i++) {
+                if (choices [i] != actions [i] ||
+                    !(choices [i].getName ().equals (names [i]))) {
+                    return (true);
+                }
+            }
+            return (false);
+        }
+
+        private void rebuild (Map <String, MenuAction> choices) {
+            int size = choices.size ();
+            keys = new String [size];
+            actions = new MenuAction [size];
+            int i = 0;
+            for (Map.Entry <String, MenuAction> entry : choices.entrySet ()) {
+                keys [i] = entry.getKey ();
+                actions [i] = entry.getValue ();
+                i++;
+            }
+            build ();
+        }
+
+        private void rebuild (MenuAction [] choices) {
+            keys = new String [choices.length];
+            for (int i = 0; i < choices.length; i++) {
+                keys [i] = Integer.toString (i + 1);
+            }
+            actions = choices.clone ();
+            build ();
+        }
+
+        // Take the names and build the text from the keys and actions
+        private void build () {
+            names = new String [actions.length];
+            String newline = System.lineSeparator ();
+            StringBuilder builder = new StringBuilder ();
+            for (int i = 0; i < actions.length; i++) {
+                names [i] = actions [i].getName ();
+                builder.append ("Press ").append (keys [i]).append (" to ")
+                    .append (names [i]).append ('.').append (newline);
+            }
+            text = builder.toString ();
+            index = null;
+        }
+
+        /**
+         * @return an index of the choices the text was last built from
+         */
+        public MenuIndex index () {
+            if (index == null) {
+                index = new MenuIndex (keys, actions, names);
+            }
+            return (index);
+        }
+    }
+
+    /**
+     * A prefix trie over the keys and names of a menu's choices, for
+     * choosing by typing only the start of one
+     *
+     * Matching ignores case. Every entry is sorted, so each node of the
+     * trie covers a run of the sorted entries; finding a prefix takes time
+     * proportional to its length, and listing its matches takes time
+     * proportional to their number as well.
+     */
+    public static final class MenuIndex {
+        private static final class Entry implements Comparable <Entry> {
+            final String text;
+            final String key;
+            final MenuAction action;
+            final boolean isKey;
+
+            Entry (String text, String key, MenuAction action,
+                   boolean isKey) {
+                this.text = text;
+                this.key = key;
+                this.action = action;
+                this.isKey = isKey;
+            }
+
+            public int compareTo (Entry other) {
+                int order = text.compareTo (other.text);
+                if (order == 0 && isKey != other.isKey) {
+                    // Put keys first, so that they win exact matches
+                    order = isKey ? -1 : 1;
+                }
+                return (order);
+            }
+        }
+
+        private static final class Node {
+            // The children, sorted by the chars which lead to them
+            char [] labels = new char [0];
+            Node [] children = new Node [0];
+            // The entries under this node are from first up to last
+            int first;
+            int last;
+            // Whether the entries under this node are for several keys
+            boolean shared = false;
+            // The entry which ends at this node, if any
+            Entry exact;
+        }
+
+        private final Entry [] entries;
+        private final Node root = new Node ();
+
+        /**
+         * Index a menu's choices
+         *
+         * @param choices the actions on the menu, keyed by what to type for
+         * each
+         */
+        public MenuIndex (Map <String, ? extends MenuAction> choices) {
+            this (choices.keySet ().toArray (new String [0]),
+                  choices.values ().toArray (new MenuAction [0]), null);
+        }
+
+        MenuIndex (String [] keys, MenuAction [] actions, String [] names) {
+            entries = new Entry [keys.length * 2];
+            for (int i = 0; i < keys.length; i++) {
+                String name = (names == null) ?
+                    actions [i].getName () : names [i];
+                entries [i * 2] =
+                    new Entry (fold (keys [i]), keys [i], actions [i], true);
+                entries [i * 2 + 1] =
+                    new Entry (fold (name), keys [i], actions [i], false);
+            }
+            Arrays.sort (entries);
+            for (int i = 0; i < entries.length; i++) {
+                insert (i);
+            }
+        }
+
+        // Add an entry, which sorts after every one added so far
+        private void insert (int i) {
+            Entry entry = entries [i];
+            Node node = root;
+            extend (node, i);
+            for (int j = 0; j < entry.text.length (); j++) {
+                char chr = entry.text.charAt (j);
+                int count = node.labels.length;
+                if (count == 0 || node.labels [count - 1] != chr) {
+                    Node child = new Node ();
+                    child.first = i;
+                    node.labels = Arrays.copyOf (node.labels, count + 1);
+                    node.children = Arrays.copyOf (node.children, count + 1);
+                    node.labels [count] = chr;
+                    node.children [count] = child;
+                    count++;
+                }
+                node = node.children [count - 1];
+                extend (node, i);
+            }
+            if (node.exact == null) {
+                node.exact = entry;
+            }
+        }
+
+        private void extend (Node node, int i) {
+            if (node.last > node.first &&
+                !(entries [i].key.equals (entries [node.first].key))) {
+                node.shared = true;
+            }
+            node.last = i + 1;
+        }
+
+        private static String fold (String text) {
+            char [] chars = new char [text.length ()];
+            for (int i = 0; i < chars.length; i++) {
+                chars [i] = Character.toLowerCase (text.charAt (i));
+            }
+            return (new String (chars));
+        }
+
+        private Node find (String prefix) {
+            Node node = root;
+            for (int i = 0; i < prefix.length (); i++) {
+                int child = Arrays.binarySearch
+                    (node.labels, Character.toLowerCase (prefix.charAt (i)));
+                if (child < 0) {
+                    return (null);
+                }
+                node = node.children [child];
+            }
+            return (node);
+        }
+
+        /**
+         * Find the choice a prefix stands for
+         *
+         * A whole key or name is chosen even if it is also the start of
+         * others, with keys before names; otherwise the prefix must start
+         * the key or name of only one choice.
+         *
+         * @param prefix what was typed
+         * @return the action chosen, or null if there is no one choice
+         */
+        public MenuAction select (String prefix) {
+            Node node = find (prefix);
+            if (prefix.isEmpty () || node == null) {
+                return (null);
+            } else if (node.exact != null) {
+                return (node.exact.action);
+            }
+            return (node.shared ? null : entries [node.first].action);
+        }
+
+        /**
+         * List the choices whose keys or names start with a prefix
+         *
+         * @param prefix what was typed
+         * @return the keys of the choices, in order of the matching keys or
+         * names
+         */
+        public List <String> matchingKeys (String prefix) {
+            Node node = find (prefix);
+            Set <String> keys = new LinkedHashSet <String> ();
+            if (node != null) {
+                for (int i = node.first; i < node.last; i++) {
+                    keys.add (entries [i].key);
+                }
+            }
+            return (new ArrayList <String> (keys));
+        }
+    }
+
     public static void mainLoop (GenericScanner kbdScanner,
                                  VoidFunction header,
                                  final HashMap <String, MenuAction> choices) {
-        Set <Map.Entry <String, MenuAction>> entries = choices.entrySet ();
+        mainLoop (kbdScanner, header, choices, null);
+    }
+
+    /**
+     * Repeatedly show a menu and run the action chosen from it, until an
+     * action returns false
+     *
+     * With a renderer, only the rows of the menu which change are redrawn
+     * after each action. An action which prints has to call invalidate on
+     * the renderer, or what it printed is drawn over.
+     *
+     * @param kbdScanner the scanner from which to read choices
+     * @param header a function which prints the header, or null for none
+     * @param choices the actions on the menu, keyed by what to type for each
+     * @param screen the renderer with which to draw the header and menu, or
+     * null to simply print them
+     */
+    public static void mainLoop (GenericScanner kbdScanner,
+                                 VoidFunction header,
+                                 final HashMap <String, MenuAction> choices,
+                                 ScreenRenderer screen) {
+        mainLoop (kbdScanner, header, choices, screen, false);
+    }
+
+    /**
+     * Repeatedly show a menu and run the action chosen from it, until an
+     * action returns false, optionally allowing choices to be abbreviated
+     *
+     * With type-ahead, a choice which isn't a key is looked up in a
+     * MenuIndex of the menu, so it can be the start of just one key or
+     * name; if it starts several, they are listed. The index is only built
+     * again when the choices change.
+     *
+     * @param kbdScanner the scanner from which to read choices
+     * @param header a function which prints the header, or null for none
+     * @param choices the actions on the menu, keyed by what to type for each
+     * @param screen the renderer with which to draw the header and menu, or
+     * null to simply print them
+     * @param typeAhead whether a choice can be abbreviated
+     */
+    public static void mainLoop (GenericScanner kbdScanner,
+                                 VoidFunction header,
+                                 final HashMap <String, MenuAction> choices,
+                                 ScreenRenderer screen,
+                                 boolean typeAhead) {
+        menuLoop (kbdScanner, header, choices, null, new MenuText (), screen,
+                  typeAhead);
+    }
+
+    // Run a menu, and the submenus opened from it, until an action on the
+    // menu itself returns false. The menu is keyed by strings unless it is
+    // numbered; the submenus open are kept on a stack, the innermost on top.
+    private static void menuLoop (GenericScanner kbdScanner,
+                                  VoidFunction header,
+                                  HashMap <String, MenuAction> rootChoices,
+                                  final MenuAction [] numbered,
+                                  MenuText rootMenu, ScreenRenderer screen,
+                                  boolean typeAhead) {
+        IntPredicate inRange = new IntPredicate () {
+                public boolean test (int choice) {
+                    return (choice >= 1 && choice <= numbered.length);
+                }
+            };
+        ArrayDeque <SubMenuAction> open = new ArrayDeque <SubMenuAction> ();
         while (true) {
-            if (header != null) {
-                header.call ();
+            SubMenuAction submenu = open.peek ();
+            MenuAction choiceAction;
+            if (submenu == null && numbered != null) {
+                showMenu (header, rootMenu.get (numbered), screen);
+                choiceAction =
+                    numbered [kbdScanner.promptInt ("Choice", inRange) - 1];
+            } else {
+                HashMap <String, MenuAction> choices = (submenu == null) ?
+                    rootChoices : submenu.getChoices ();
+                MenuText menu = (submenu == null) ? rootMenu : submenu.menu;
+                showMenu (headerOf (open, header), menu.get (choices),
+                          screen);
+                choiceAction = choose (kbdScanner, choices, menu, typeAhead);
+            }
+
+            if (choiceAction instanceof SubMenuAction) {
+                open.push ((SubMenuAction) choiceAction);
+                continue;
             }
-            for (Map.Entry <String, MenuAction> entry : entries) {
-                System.out.format ("Press %s to %s.%n",
-                                   entry.getKey (),
-                                   entry.getValue ().getName ());
+            if (!(choiceAction.call ())) {
+                if (open.isEmpty ()) {
+                    break;
+                }
+                open.pop ();
             }
+        }
+    }
 
-            MenuAction choiceAction = kbdScanner.<MenuAction, String>
+    // Read a choice from a menu keyed by strings
+    private static MenuAction choose (GenericScanner kbdScanner,
+                                      final Map <String, MenuAction> choices,
+                                      final MenuText menu,
+                                      final boolean typeAhead) {
+        return (kbdScanner.<MenuAction, String>
                 prompt (String.class, "Choice",
                         new UnaryFunction <MenuAction, String> () {
                             public MenuAction call (String choice) {
-                                return (choices.get (choice));
+                                MenuAction action = choices.get (choice);
+                                if (action == null && typeAhead) {
+                                    action = abbreviated (menu.index (),
+                                                          choices, choice);
+                                }
+                                return (action);
                             }
-                        });
+                        }));
+    }
 
-            if (!(choiceAction.call ())) {
-                break;
+    // The header of the innermost open submenu which has one
+    private static VoidFunction headerOf (Iterable <SubMenuAction> open,
+                                          VoidFunction header) {
+        for (SubMenuAction submenu : open) {
+            if (submenu.getHeader () != null) {
+                return (submenu.getHeader ());
             }
         }
+        return (header);
     }
     public static void mainLoop (GenericScanner kbdScanner,
                                  VoidFunction header,
                                  MenuAction [] choices) {
-        HashMap <String, MenuAction> choicesMap =
-            new LinkedHashMap <String, MenuAction> ();
-        for (int i = 0; i < choices.length; i++) {
-            choicesMap.put (Integer.toString (i + 1), choices [i]);
+        mainLoop (kbdScanner, header, choices, null);
+    }
+
+    /**
+     * Repeatedly show a numbered menu and run the action chosen from it,
+     * until an action returns false
+     *
+     * The choice is read as an int and used as an index into choices, so
+     * choosing involves no map or strings of its own.
+     *
+     * @param kbdScanner the scanner from which to read choices
+     * @param header a function which prints the header, or null for none
+     * @param choices the actions on the menu, chosen by number starting at 1
+     * @param screen the renderer with which to draw the header and menu, or
+     * null to simply print them
+     */
+    public static void mainLoop (GenericScanner kbdScanner,
+                                 VoidFunction header,
+                                 MenuAction [] choices,
+                                 ScreenRenderer screen) {
+        mainLoop (kbdScanner, header, choices, screen, false);
+    }
+
+    /**
+     * Repeatedly show a numbered menu and run the action chosen from it,
+     * until an action returns false, optionally allowing choices on its
+     * submenus to be abbreviated
+     *
+     * Submenus are keyed by strings, and open in the same loop as for a
+     * menu keyed by strings; see the other mainLoop for type-ahead.
+     *
+     * @param kbdScanner the scanner from which to read choices
+     * @param header a function which prints the header, or null for none
+     * @param choices the actions on the menu, chosen by number starting at 1
+     * @param screen the renderer with which to draw the header and menu, or
+     * null to simply print them
+     * @param typeAhead whether a choice on a submenu can be abbreviated
+     */
+    public static void mainLoop (GenericScanner kbdScanner,
+                                 VoidFunction header,
+                                 MenuAction [] choices,
+                                 ScreenRenderer screen,
+                                 boolean typeAhead) {
+        menuLoop (kbdScanner, header, null, choices, new MenuText (), screen,
+                  typeAhead);
+    }
+
+    // Look up an abbreviated choice, listing the choices it could mean if
+    // there are several
+    private static MenuAction abbreviated (MenuIndex index,
+                                           Map <String, MenuAction> choices,
+                                           String choice) {
+        MenuAction action = index.select (choice);
+        if (action == null && !(choice.isEmpty ())) {
+            List <String> keys = index.matchingKeys (choice);
+            if (keys.size () > 1) {
+                String newline = System.lineSeparator ();
+                StringBuilder matches = new StringBuilder ();
+                for (String key : keys) {
+                    matches.append ("Press ").append (key).append (" to ")
+                        .append (choices.get (key).getName ()).append ('.')
+                        .append (newline);
+                }
+                System.out.print (matches);
+            }
+        }
+        return (action);
+    }
+
+    // Draw the header and the text of a menu
+    private static void showMenu (VoidFunction header, String menu,
+                                  ScreenRenderer screen) {
+        if (screen == null) {
+            if (header != null) {
+                header.call ();
+            }
+            System.out.print (menu);
+        } else if (header == null || header instanceof PrintFunction) {
+            StringBuilder frame = new StringBuilder ();
+            if (header != null) {
+                frame.append (ScreenRenderer.capture ((PrintFunction) header));
+            }
+            frame.append (menu);
+            screen.render (frame.toString ());
+        } else {
+            // A header which can only print to System.out can't be captured
+            // safely, so the renderer prints it above the menu
+            screen.render (header, menu);
         }
-        mainLoop (kbdScanner, header, choicesMap);
     }
 
     public static Boolean exitLoop (GenericScanner kbdScanner) {
@@ -473,6 +4233,18 @@ public class Utilities {
                         }));
     }
 
+    /**
+     * @return an action which leaves a submenu, going back to the menu it
+     * was opened from
+     */
+    public static BasicMenuAction backAction () {
+        return (new BasicMenuAction ("go back") {
+                public Boolean call () {
+                    return (false);
+                }
+            });
+    }
+
     public static BasicMenuAction exitAction (final GenericScanner kbdScanner) {
         return (new BasicMenuAction ("exit") {
                 public Boolean call () {